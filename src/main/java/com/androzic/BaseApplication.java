@@ -20,12 +20,16 @@
 
 package com.androzic;
 
+import android.app.ActivityManager;
 import android.app.Application;
+import android.content.ComponentCallbacks2;
 import android.os.Build;
 
 import android.support.annotation.Nullable;
 import android.support.annotation.NonNull;
 
+import com.androzic.map.TileRAMCache;
+
 import java.io.File;
 
 public abstract class BaseApplication extends Application
@@ -43,6 +47,30 @@ public abstract class BaseApplication extends Application
 		self = instance;
 	}
 
+	@Override
+	public void onCreate()
+	{
+		super.onCreate();
+		// limit memory occupied by map tiles according to device heap size
+		ActivityManager activityManager = (ActivityManager) getSystemService(ACTIVITY_SERVICE);
+		if (activityManager != null)
+			TileRAMCache.setMemoryClass(activityManager.getMemoryClass());
+	}
+
+	@Override
+	public void onTrimMemory(int level)
+	{
+		super.onTrimMemory(level);
+		TileRAMCache.trimMemory(level);
+	}
+
+	@Override
+	public void onLowMemory()
+	{
+		super.onLowMemory();
+		TileRAMCache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+	}
+
 	/**
 	 * Returns external cache dir for storing non-permanent files (like online map tiles)
 	 * @return cache root directory, or null if cache storage is currently unavailable
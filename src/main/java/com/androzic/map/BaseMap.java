@@ -27,10 +27,12 @@ import android.graphics.Path;
 
 import com.androzic.data.Bounds;
 import com.androzic.ui.Viewport;
+import com.androzic.util.Metrics;
 import com.jhlabs.map.proj.Projection;
 import com.jhlabs.map.proj.ProjectionException;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.List;
 
 public abstract class BaseMap implements Serializable
@@ -281,6 +283,22 @@ public abstract class BaseMap implements Serializable
 	public abstract int getPriority();
 	public abstract List<String> info();
 
+	/**
+	 * Returns tile cache state and tile loading statistics, shared by all maps.
+	 */
+	protected static List<String> statistics()
+	{
+		ArrayList<String> info = new ArrayList<>();
+		info.add("tile cache: " + TileRAMCache.getTotalSize() + " tiles, " + TileRAMCache.getTotalBytes() / 1024 + " KiB of "
+				+ TileRAMCache.getMaxBytes() / 1024 + " KiB (peak: " + TileRAMCache.getPeakTotalBytes() / 1024 + " KiB)");
+		info.add("tile cache policy: " + TileRAMCache.getEvictionPolicy().getClass().getSimpleName());
+		info.add(String.format("tile cache hit ratio: %.1f%%", TileRAMCache.getHitRatio() * 100));
+		info.add("statistics:");
+		for (String line : Metrics.snapshot())
+			info.add("\t" + line);
+		return info;
+	}
+
 	@Override
 	public int hashCode()
 	{
@@ -0,0 +1,153 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+/**
+ * A pool of tile bitmaps that are not used anymore. Bitmaps are grouped by size and configuration
+ * and are reused by tile decoders instead of allocating new ones.
+ */
+public class BitmapPool
+{
+	private static final HashMap<Long, LinkedList<Bitmap>> pool = new HashMap<>();
+	private static long maxSize = Runtime.getRuntime().maxMemory() / 16;
+	private static long size = 0;
+
+	/**
+	 * Sets maximum amount of memory (in bytes) occupied by pooled bitmaps.
+	 */
+	public static synchronized void setMaxSize(long bytes)
+	{
+		maxSize = bytes;
+		if (size > maxSize)
+			clear();
+	}
+
+	/**
+	 * Returns bitmap of requested size and configuration, reusing pooled one if available.
+	 * Contents of the returned bitmap are undefined.
+	 */
+	public static Bitmap obtain(int width, int height, Bitmap.Config config)
+	{
+		Bitmap bitmap = poll(width, height, config);
+		if (bitmap == null)
+			bitmap = Bitmap.createBitmap(width, height, config);
+		return bitmap;
+	}
+
+	/**
+	 * Returns bitmap to pool. Bitmap should not be used by caller after that.
+	 */
+	public static synchronized void release(Bitmap bitmap)
+	{
+		if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable())
+			return;
+		int bytes = getByteCount(bitmap);
+		if (size + bytes > maxSize)
+			return;
+		long key = getKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+		LinkedList<Bitmap> bitmaps = pool.get(key);
+		if (bitmaps == null)
+		{
+			bitmaps = new LinkedList<>();
+			pool.put(key, bitmaps);
+		}
+		bitmaps.add(bitmap);
+		size += bytes;
+	}
+
+	/**
+	 * Removes all bitmaps from pool.
+	 */
+	public static synchronized void clear()
+	{
+		pool.clear();
+		size = 0;
+	}
+
+	/**
+	 * Decodes image reusing pooled bitmap of the same size if platform supports it.
+	 */
+	public static Bitmap decodeByteArray(byte[] data, int offset, int length)
+	{
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB)
+			return BitmapFactory.decodeByteArray(data, offset, length);
+		return decodeReusing(data, offset, length);
+	}
+
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	private static Bitmap decodeReusing(byte[] data, int offset, int length)
+	{
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(data, offset, length, options);
+		if (options.outWidth <= 0 || options.outHeight <= 0)
+			return null;
+
+		options.inJustDecodeBounds = false;
+		options.inMutable = true;
+		options.inSampleSize = 1;
+		options.inBitmap = poll(options.outWidth, options.outHeight, Bitmap.Config.ARGB_8888);
+		try
+		{
+			return BitmapFactory.decodeByteArray(data, offset, length, options);
+		}
+		catch (IllegalArgumentException e)
+		{
+			// bitmap can not be reused for this image
+			options.inBitmap = null;
+			return BitmapFactory.decodeByteArray(data, offset, length, options);
+		}
+	}
+
+	private static synchronized Bitmap poll(int width, int height, Bitmap.Config config)
+	{
+		LinkedList<Bitmap> bitmaps = pool.get(getKey(width, height, config));
+		if (bitmaps == null)
+			return null;
+		Bitmap bitmap = bitmaps.poll();
+		if (bitmap != null)
+			size -= getByteCount(bitmap);
+		return bitmap;
+	}
+
+	private static long getKey(int width, int height, Bitmap.Config config)
+	{
+		int c = config != null ? config.ordinal() + 1 : 0;
+		return (long) width << 32 | (long) height << 8 | c;
+	}
+
+	/**
+	 * Returns amount of memory occupied by bitmap pixels. Bitmap.getByteCount() is not available
+	 * on older platforms.
+	 */
+	public static int getByteCount(Bitmap bitmap)
+	{
+		return bitmap.getRowBytes() * bitmap.getHeight();
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.androzic.map;
+
+/**
+ * CLOCK (second chance) policy, approximates LRU without reordering tiles on access.
+ */
+public class ClockEvictionPolicy implements EvictionPolicy
+{
+	private final TileRing ring = new TileRing();
+
+	@Override
+	public void onInsert(Tile tile, long id)
+	{
+		tile.referenced = false;
+		ring.add(tile);
+	}
+
+	@Override
+	public void onAccess(Tile tile)
+	{
+		tile.referenced = true;
+	}
+
+	@Override
+	public void onRemove(Tile tile, long id, boolean evicted)
+	{
+		ring.remove(tile);
+	}
+
+	@Override
+	public Tile victim(Tile keep)
+	{
+		// every tile can be passed twice at most: first time its reference bit is cleared
+		for (int n = ring.size() * 2; n > 0; n--)
+		{
+			Tile tile = ring.head();
+			ring.advance();
+			if (tile == keep)
+				continue;
+			if (tile.referenced)
+			{
+				tile.referenced = false;
+				continue;
+			}
+			return tile;
+		}
+		return null;
+	}
+
+	@Override
+	public void clear()
+	{
+		ring.clear();
+	}
+}
@@ -0,0 +1,64 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.androzic.map;
+
+/**
+ * Decides which tiles are evicted from {@link TileRAMCache}. All methods except
+ * {@link #onAccess(Tile)} are called with cache lock held.
+ */
+public interface EvictionPolicy
+{
+	/**
+	 * Called when tile is added to cache.
+	 *
+	 * @param id
+	 *            identity of the tile in cache (map, variant and tile key combined), stays the same
+	 *            if tile with the same key is cached again
+	 */
+	void onInsert(Tile tile, long id);
+
+	/**
+	 * Called when tile is requested from cache. Called without lock from different threads, so it
+	 * should be cheap and should not modify policy structures.
+	 */
+	void onAccess(Tile tile);
+
+	/**
+	 * Called when tile is removed from cache.
+	 *
+	 * @param evicted
+	 *            true if tile is removed because it was chosen by {@link #victim(Tile)}
+	 */
+	void onRemove(Tile tile, long id, boolean evicted);
+
+	/**
+	 * Returns tile that should be evicted next.
+	 *
+	 * @param keep
+	 *            tile that should not be evicted
+	 * @return tile or null if there is nothing to evict
+	 */
+	Tile victim(Tile keep);
+
+	/**
+	 * Forgets all tiles.
+	 */
+	void clear();
+}
@@ -60,6 +60,34 @@ public class Tile
 	 */
 	public final byte zoomLevel;
 
+	/**
+	 * Size of tile bitmap in bytes, calculated when tile is put in cache
+	 */
+	int byteCount = 0;
+
+	/**
+	 * Set when cached tile is accessed, used by cache eviction policy
+	 */
+	volatile boolean referenced = false;
+
+	/**
+	 * Cache bookkeeping: the map that holds tile, neighbours in eviction policy queue and the queue
+	 */
+	TileRAMCache.Segment segment;
+	Tile prevTile;
+	Tile nextTile;
+	int queue;
+	boolean lowPriority;
+	/**
+	 * Time of the last cache access, used to find tiles that are not visible
+	 */
+	volatile long accessTime;
+
+	/**
+	 * Number of tile users (caches and renderers)
+	 */
+	private int references = 0;
+
 	/**
 	 * Constructs an immutable tile with the specified XY number and zoom level.
 	 * 
@@ -78,6 +106,54 @@ public class Tile
 		this.hashCode = calculateHashCode();
 	}
 
+	/**
+	 * Marks tile as being used, its bitmap will not be reused until tile is released.
+	 */
+	public synchronized void acquire()
+	{
+		references++;
+	}
+
+	/**
+	 * Marks cached tile as being used unless it has been already released by the cache.
+	 *
+	 * @return false if tile bitmap is already recycled
+	 */
+	synchronized boolean tryAcquire()
+	{
+		if (bitmap == null)
+			return false;
+		references++;
+		return true;
+	}
+
+	/**
+	 * Releases tile. When the last user releases the tile its bitmap is returned to {@link BitmapPool}.
+	 * Tiles that were never acquired are not affected.
+	 */
+	public void release()
+	{
+		Bitmap b = null;
+		synchronized (this)
+		{
+			if (references > 0 && --references == 0)
+			{
+				b = bitmap;
+				bitmap = null;
+			}
+		}
+		if (b != null)
+			BitmapPool.release(b);
+	}
+
+	/**
+	 * Returns amount of memory occupied by tile bitmap, used by cache to account tile size.
+	 */
+	int getByteCount()
+	{
+		return BitmapPool.getByteCount(bitmap);
+	}
+
 	@Override
 	public boolean equals(Object obj)
 	{
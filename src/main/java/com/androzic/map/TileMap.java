@@ -22,7 +22,9 @@ package com.androzic.map;
 
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Paint;
 import android.graphics.Path;
+import android.graphics.RectF;
 
 import com.androzic.Log;
 import com.androzic.ui.Viewport;
@@ -35,6 +37,8 @@ public abstract class TileMap extends BaseMap
 
 	public static final int TILE_SIZE = 256;
 
+	private static final Paint filterPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
 	protected byte srcZoom;
 	protected byte defZoom;
 	protected double dynZoom;
@@ -386,9 +390,13 @@ public abstract class TileMap extends BaseMap
 			result = false;
 		}
 
-		float w2mx = viewport.canvasWidth / 2 - map_xy[0];
-		float h2my = viewport.canvasHeight / 2 - map_xy[1];
-		int twh = Math.round(tile_wh);
+		setViewportTiles(map_xy[0] / tile_wh, map_xy[1] / tile_wh, tiles_per_x, tiles_per_y);
+
+		// tiles are kept in native resolution and scaled to dynamic zoom by canvas
+		c.save();
+		c.translate(viewport.canvasWidth / 2 - map_xy[0], viewport.canvasHeight / 2 - map_xy[1]);
+		c.scale((float) dynZoom, (float) dynZoom);
+		RectF dst = new RectF();
 
 		int i = osm_y, j = osm_x, dx = 0, dy = -1;
 		int t = Math.max(c_max - c_min + 1, r_max - r_min + 1);
@@ -398,18 +406,33 @@ public abstract class TileMap extends BaseMap
 		{
 			if (c_min <= j && j <= c_max && r_min <= i && i <= r_max)
 			{
-				Bitmap tile = getTile(j, i);
-				if (tile != null && ! tile.isRecycled())
+				Tile acquired = acquireTile(j, i);
+				try
 				{
-					if (tile.getWidth() != twh)
-						tile = Bitmap.createScaledBitmap(tile, twh, twh, true);
-					float tx = w2mx + j * tile_wh;
-					float ty = h2my + i * tile_wh;
-					c.drawBitmap(tile, tx, ty, null);
+					Bitmap tile = acquired != null ? acquired.bitmap : null;
+					if (tile != null && ! tile.isRecycled())
+					{
+						float tx = j * tileSize;
+						float ty = i * tileSize;
+						if (dynZoom == 1.0 && tile.getWidth() == tileSize)
+						{
+							c.drawBitmap(tile, tx, ty, null);
+						}
+						else
+						{
+							dst.set(tx, ty, tx + tileSize, ty + tileSize);
+							c.drawBitmap(tile, null, dst, filterPaint);
+						}
+					}
+					else
+					{
+						result = false;
+					}
 				}
-				else
+				finally
 				{
-					result = false;
+					if (acquired != null)
+						acquired.release();
 				}
 			}
 
@@ -423,6 +446,7 @@ public abstract class TileMap extends BaseMap
 			j += dx;
 			i += dy;
 		}
+		c.restore();
 
 		if (drawBorder && borderPaint != null)
 			c.drawPath(clipPath, borderPaint);
@@ -433,15 +457,32 @@ public abstract class TileMap extends BaseMap
 	@Override
 	public synchronized void recalculateCache()
 	{
-		TileRAMCache oldCache = cache;
-		int nx = (int) Math.ceil(viewportWidth * 1. / (tileSize * dynZoom)) + 2;
-		int ny = (int) Math.ceil(viewportHeight * 1. / (tileSize * dynZoom)) + 2;
-		int cacheSize = nx * ny;
-		Log.e("TileMap", "Cache size: " + cacheSize);
-		cache = new TileRAMCache(cacheSize);
-		if (oldCache != null)
-			oldCache.destroy();
+		// tiles are not scaled, they are cached by source zoom only
+		cache = new TileRAMCache(id, 0);
 	}
 
-	protected abstract Bitmap getTile(int x, int y) throws OutOfMemoryError;
+	/**
+	 * Called before tiles are drawn with the area that is currently visible.
+	 *
+	 * @param x
+	 *            X position of viewport center in tiles of source zoom
+	 * @param y
+	 *            Y position of viewport center in tiles of source zoom
+	 * @param rx
+	 *            number of tiles visible to each side of the center horizontally
+	 * @param ry
+	 *            number of tiles visible to each side of the center vertically
+	 */
+	protected void setViewportTiles(double x, double y, int rx, int ry)
+	{
+	}
+
+	/**
+	 * Returns tile of source zoom marked as used so that its bitmap is not reused while it is
+	 * drawn, caller releases the tile. Loaded tile should be acquired before it is put in cache,
+	 * otherwise it can be evicted and its bitmap reused before it is drawn.
+	 *
+	 * @return tile or null if there is nothing to draw
+	 */
+	protected abstract Tile acquireTile(int x, int y) throws OutOfMemoryError;
 }
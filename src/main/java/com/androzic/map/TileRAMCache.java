@@ -22,62 +22,310 @@
 
 package com.androzic.map;
 
-import java.util.LinkedHashMap;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.ComponentCallbacks2;
+import android.os.SystemClock;
+
+import com.androzic.Log;
+import com.androzic.util.LongHashMap;
+import com.androzic.util.Metrics;
 
 /**
- * A thread-safe cache for tiles with a fixed size and LRU policy.
+ * A thread-safe cache for tiles. All caches share the same process-wide storage limited by the
+ * amount of memory occupied by tile bitmaps. Each cache is a view of that storage identified by
+ * map id and a variant (e.g. zoom) so tiles of a map survive zoom changes and map switches until
+ * they are evicted.
+ * <p>
+ * Tiles of each view are kept in a primitive long keyed map, lookups do not lock and do not
+ * allocate. Modifications are serialized, tiles are evicted according to {@link EvictionPolicy}.
+ * <p>
+ * Generated and expired tiles are placeholders, they are kept in a separate low priority tier
+ * which is evicted first and can not take more than a quarter of memory budget. Placeholders
+ * never evict real tiles.
  */
 public class TileRAMCache
 {
 	/**
-	 * Load factor of the internal HashMap.
+	 * Views of the storage by owner, guarded by lock
+	 */
+	private static final HashMap<Long, Segment> segments = new HashMap<>();
+	/**
+	 * Modification lock
 	 */
-	private static final float LOAD_FACTOR = .75f;
+	private static final Object lock = new Object();
+	private static volatile EvictionPolicy policy = new ClockEvictionPolicy();
+	private static int count;
+	/**
+	 * Generated and expired tiles in insertion order
+	 */
+	private static final TileRing lowPriority = new TileRing();
+	private static long lowPriorityBytes;
+
+	private static volatile long maxBytes = Runtime.getRuntime().maxMemory() / 4;
+	private static final AtomicLong totalBytes = new AtomicLong();
+	private static final AtomicLong peakTotalBytes = new AtomicLong();
+	private static final Metrics.Counter hits = Metrics.counter("cache.hits");
+	private static final Metrics.Counter misses = Metrics.counter("cache.misses");
+	private static final Metrics.Counter puts = Metrics.counter("cache.puts");
+	private static final Metrics.Counter evictions = Metrics.counter("cache.evictions");
 
-	private final int capacity;
-	private LinkedHashMap<Long, Tile> map;
+	/**
+	 * Tiles accessed within this period before the latest access are considered visible
+	 */
+	private static final long VISIBLE_PERIOD = 1000;
+	private static volatile long lastAccessTime;
+
+	private final int id;
+	private final long owner;
+	private volatile Segment segment;
+	private volatile boolean destroyed;
+
+	/**
+	 * Constructs a view of shared tile cache.
+	 *
+	 * @param id
+	 *            map id
+	 * @param variant
+	 *            distinguishes tiles of the same map that have the same keys but different
+	 *            content, e.g. tiles rendered with different settings
+	 */
+	public TileRAMCache(int id, int variant)
+	{
+		this.id = id;
+		this.owner = (long) id << 32 | variant & 0xFFFFFFFFL;
+		synchronized (lock)
+		{
+			segment = obtainSegment(owner);
+		}
+	}
 
 	/**
-	 * Constructs an tile cache with a fixes size and LRU policy.
-	 * 
-	 * @param capacity
-	 *            the maximum number of entries in the cache.
-	 * @throws IllegalArgumentException
-	 *             if the capacity is negative.
+	 * Sets memory budget (in bytes) of the shared cache.
 	 */
-	public TileRAMCache(int capacity)
+	public static void setMaxBytes(long bytes)
 	{
-		if (capacity < 0)
+		maxBytes = bytes;
+		synchronized (lock)
 		{
-			throw new IllegalArgumentException();
+			trim(null);
 		}
-		this.capacity = capacity;
-		this.map = createMap(this.capacity);
 	}
 
-	private LinkedHashMap<Long, Tile> createMap(final int initialCapacity)
+	public static long getMaxBytes()
 	{
-		return new LinkedHashMap<Long, Tile>((int)(initialCapacity * 1. / LOAD_FACTOR + 2), LOAD_FACTOR, true) {
-			private static final long serialVersionUID = 4L;
+		return maxBytes;
+	}
+
+	/**
+	 * Derives memory budget from application memory class (heap size limit in megabytes).
+	 *
+	 * @see android.app.ActivityManager#getMemoryClass()
+	 */
+	public static void setMemoryClass(int memoryClass)
+	{
+		if (memoryClass > 0)
+			setMaxBytes(memoryClass * 1024L * 1024L / 4);
+	}
+
+	/**
+	 * Replaces eviction policy of the shared cache, cached tiles are passed to the new policy.
+	 * Hit statistics is reset.
+	 */
+	public static void setEvictionPolicy(EvictionPolicy evictionPolicy)
+	{
+		synchronized (lock)
+		{
+			policy.clear();
+			policy = evictionPolicy;
+			for (Segment segment : segments.values())
+			{
+				for (long key : segment.tiles.keys())
+				{
+					Tile tile = segment.tiles.get(key);
+					if (! tile.lowPriority)
+						evictionPolicy.onInsert(tile, getId(segment, key));
+				}
+			}
+			resetStatistics();
+		}
+	}
+
+	public static EvictionPolicy getEvictionPolicy()
+	{
+		return policy;
+	}
+
+	/**
+	 * Returns amount of memory occupied by cached tiles.
+	 */
+	public static long getTotalBytes()
+	{
+		return totalBytes.get();
+	}
+
+	/**
+	 * Returns maximum amount of memory that has been occupied by cached tiles.
+	 */
+	public static long getPeakTotalBytes()
+	{
+		return peakTotalBytes.get();
+	}
+
+	/**
+	 * Returns number of cached tiles of all maps.
+	 */
+	public static int getTotalSize()
+	{
+		synchronized (lock)
+		{
+			return count;
+		}
+	}
+
+	/**
+	 * Returns number of tile requests that were served from cache.
+	 */
+	public static long getHits()
+	{
+		return hits.get();
+	}
+
+	/**
+	 * Returns number of tile requests that were not served from cache.
+	 */
+	public static long getMisses()
+	{
+		return misses.get();
+	}
+
+	/**
+	 * Returns share of tile requests served from cache.
+	 */
+	public static double getHitRatio()
+	{
+		long h = hits.get();
+		long total = h + misses.get();
+		return total > 0 ? (double) h / total : 0.;
+	}
+
+	public static void resetStatistics()
+	{
+		hits.reset();
+		misses.reset();
+	}
+
+	/**
+	 * Frees memory according to memory pressure level, the higher is the level the more tiles
+	 * are dropped. Unused pooled bitmaps are dropped as well.
+	 *
+	 * @param level
+	 *            one of ComponentCallbacks2.TRIM_MEMORY_* levels
+	 */
+	public static void trimMemory(int level)
+	{
+		Log.w("TileRAMCache", "trim memory, level: " + level + ", cached: " + getTotalBytes());
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE)
+		{
+			clearAll();
+		}
+		else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE)
+		{
+			trimInvisible();
+			trimToRatio(0.5f);
+		}
+		else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL)
+		{
+			trimInvisible();
+		}
+		else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+		{
+			trimLowPriority();
+			trimToRatio(0.5f);
+		}
+		else
+		{
+			trimLowPriority();
+		}
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+			BitmapPool.clear();
+	}
+
+	/**
+	 * Evicts tiles until cache occupies no more than given share of its current size.
+	 */
+	public static void trimToRatio(float ratio)
+	{
+		synchronized (lock)
+		{
+			long bytes = (long) (totalBytes.get() * ratio);
+			while (totalBytes.get() > bytes)
+			{
+				Tile tile = lowPriority.head();
+				if (tile == null)
+					tile = policy.victim(null);
+				if (tile == null)
+					break;
+				remove(tile, true);
+			}
+		}
+	}
+
+	/**
+	 * Removes generated and expired tiles.
+	 */
+	public static void trimLowPriority()
+	{
+		synchronized (lock)
+		{
+			Tile tile;
+			while ((tile = lowPriority.head()) != null)
+				remove(tile, true);
+		}
+	}
 
-			/*
-			@Override
-			public Tile remove(Object key) {
-				Tile tile = super.remove(key);
-				if (tile.bitmap != null)
-					tile.bitmap.recycle();
-				tile.bitmap = null;
-				return tile;
+	/**
+	 * Removes tiles that were not drawn recently, only tiles that are currently on screen are kept.
+	 */
+	public static void trimInvisible()
+	{
+		synchronized (lock)
+		{
+			long threshold = lastAccessTime - VISIBLE_PERIOD;
+			ArrayList<Tile> invisible = new ArrayList<>();
+			for (Segment segment : segments.values())
+			{
+				for (long key : segment.tiles.keys())
+				{
+					Tile tile = segment.tiles.get(key);
+					if (tile.accessTime < threshold)
+						invisible.add(tile);
+				}
 			}
-			 */
+			for (Tile tile : invisible)
+				remove(tile, true);
+		}
+	}
 
-			@Override
-			protected boolean removeEldestEntry(Map.Entry<Long, Tile> eldest)
+	/**
+	 * Removes all tiles of all maps.
+	 */
+	public static void clearAll()
+	{
+		synchronized (lock)
+		{
+			ArrayList<Tile> all = new ArrayList<>(count);
+			for (Segment segment : segments.values())
 			{
-				return size() > initialCapacity;
+				for (long key : segment.tiles.keys())
+					all.add(segment.tiles.get(key));
 			}
-		};
+			for (Tile tile : all)
+				remove(tile, false);
+		}
 	}
 
 	/**
@@ -87,75 +335,299 @@ public class TileRAMCache
 	 *         otherwise.
 	 * @see Map#containsKey(Object)
 	 */
-	public synchronized boolean containsKey(long key)
+	public boolean containsKey(long key)
 	{
-		return map != null && map.containsKey(key);
+		return lookup(key) != null;
 	}
 
 	/**
-	 * Clear the cache.
+	 * Removes all tiles of the map (of all variants) from the cache.
 	 */
-	public synchronized void clear()
+	public void clear()
 	{
-		if (map != null)
+		synchronized (lock)
 		{
-			/*
-			for (Tile tile : map.values())
+			ArrayList<Segment> owned = new ArrayList<>();
+			for (Segment segment : segments.values())
+			{
+				if (segment.owner >>> 32 == (id & 0xFFFFFFFFL))
+					owned.add(segment);
+			}
+			for (Segment segment : owned)
 			{
-				if (tile.bitmap != null)
-					tile.bitmap.recycle();
-				tile.bitmap = null;
+				for (long key : segment.tiles.keys())
+					remove(segment.tiles.get(key), false);
 			}
-			*/
-			map.clear();
 		}
 	}
 
 	/**
-	 * Destroy the cache at the end of its lifetime.
+	 * Detaches the cache at the end of its lifetime. Cached tiles are kept in shared storage.
 	 */
-	public synchronized void destroy()
+	public void destroy()
 	{
-		clear();
-		map = null;
+		destroyed = true;
 	}
 
 	/**
+	 * Returns the tile counting cache hit or miss and marking the tile as recently used. Should
+	 * be used only by renderers, other lookups should use {@link #peek(long)}.
+	 *
 	 * @param key
 	 *            key of the tile whose data should be returned
 	 * @return the tile
 	 * @see Map#get(Object)
 	 */
-	public synchronized Tile get(long key)
+	public Tile get(long key)
+	{
+		Tile tile = lookup(key);
+		if (tile != null)
+		{
+			policy.onAccess(tile);
+			long now = SystemClock.uptimeMillis();
+			tile.accessTime = now;
+			lastAccessTime = now;
+			hits.inc();
+		}
+		else
+		{
+			misses.inc();
+		}
+		return tile;
+	}
+
+	/**
+	 * Returns the tile marking it as used, caller should release the tile when it is not needed anymore.
+	 *
+	 * @param key
+	 *            key of the tile whose data should be returned
+	 * @return the tile
+	 * @see Tile#acquire()
+	 */
+	public Tile acquire(long key)
 	{
-		if (map != null)
-			return map.get(key);
-		else return null;
+		return acquire(key, true);
 	}
 
 	/**
+	 * Returns the tile marking it as used, caller should release the tile when it is not needed anymore.
+	 *
 	 * @param key
-	 *            key of the tile
+	 *            key of the tile whose data should be returned
+	 * @param access
+	 *            if false, lookup is not counted in statistics and does not affect eviction order
+	 * @return the tile
+	 * @see Tile#acquire()
+	 */
+	public Tile acquire(long key, boolean access)
+	{
+		Tile tile = access ? get(key) : lookup(key);
+		// tile could be evicted meanwhile
+		if (tile != null && !tile.tryAcquire())
+			return null;
+		return tile;
+	}
+
+	/**
+	 * Returns the tile without counting cache hit or miss and without marking it as recently
+	 * used, e.g. to check if tile should be prefetched.
+	 *
+	 * @param key
+	 *            key of the tile whose data should be returned
+	 * @return the tile
+	 */
+	public Tile peek(long key)
+	{
+		return lookup(key);
+	}
+
+	/**
+	 * @param key
+	 *            key of the tile, should be equal to tile.getKey()
 	 * @param tile
 	 *            tile that should be cached
 	 * @see Map#put(Object, Object)
 	 */
-	public synchronized void put(long key, Tile tile)
+	public void put(long key, Tile tile)
 	{
-		if (capacity > 0 && map != null)
+		if (destroyed || tile.bitmap == null)
+			return;
+		synchronized (lock)
 		{
-			if (map.containsKey(key))
+			Tile t = this.segment.tiles.get(key);
+			if (t != null)
 			{
-				Tile t = map.get(key);
-				if (t.generated && !tile.generated)
-					map.remove(key);
+				if (t == tile)
+				{
+					// tile can be updated in place, e.g. placeholder replaced by downloaded bitmap
+					if (tile.lowPriority == isLowPriority(tile) && tile.byteCount == tile.getByteCount())
+						return;
+				}
+				else if (t.generated && !tile.generated)
+					remove(t, false);
 				else if (t.expired && !tile.expired)
-					map.remove(key);
+					remove(t, false);
 				// the item is already in the cache
 				else
 					return;
 			}
-			map.put(key, tile);
+			if (tile.segment != null)
+				// tile is cached by another view or has changed, relink it keeping cache reference
+				unlink(tile, false);
+			else
+				tile.acquire();
+			// segment is detached when it becomes empty
+			Segment segment = this.segment;
+			if (segment.detached)
+			{
+				segment = obtainSegment(owner);
+				this.segment = segment;
+			}
+			tile.byteCount = tile.getByteCount();
+			tile.accessTime = SystemClock.uptimeMillis();
+			link(segment, tile);
+			puts.inc();
+			long total = totalBytes.addAndGet(tile.byteCount);
+			if (total > peakTotalBytes.get())
+				peakTotalBytes.set(total);
+			trim(tile);
+		}
+	}
+
+	private Tile lookup(long key)
+	{
+		if (destroyed)
+			return null;
+		Tile tile = segment.tiles.get(key);
+		// map can be modified concurrently, ensure the tile is what was asked for
+		if (tile != null && tile.getKey() != key)
+			return null;
+		return tile;
+	}
+
+	/**
+	 * Returns segment of the owner creating it if necessary. Should be called with lock held.
+	 */
+	private static Segment obtainSegment(long owner)
+	{
+		Segment segment = segments.get(owner);
+		if (segment == null)
+		{
+			segment = new Segment(owner);
+			segments.put(owner, segment);
+		}
+		return segment;
+	}
+
+	private static boolean isLowPriority(Tile tile)
+	{
+		return tile.generated || tile.expired;
+	}
+
+	/**
+	 * Evicts tiles until memory budget is met, low priority tiles are evicted first.
+	 * Should be called with lock held.
+	 *
+	 * @param keep tile that should not be evicted
+	 */
+	private static void trim(Tile keep)
+	{
+		while (lowPriorityBytes > maxBytes / 4)
+		{
+			Tile tile = lowPriority.first(keep);
+			if (tile == null)
+				break;
+			remove(tile, true);
+		}
+		while (totalBytes.get() > maxBytes)
+		{
+			Tile tile = lowPriority.first(keep);
+			// placeholder should not evict real tiles
+			if (tile == null && (keep == null || !keep.lowPriority))
+				tile = policy.victim(keep);
+			if (tile == null)
+				break;
+			remove(tile, true);
+		}
+	}
+
+
+	/**
+	 * Removes tile from cache. Should be called with lock held.
+	 */
+	private static void remove(Tile tile, boolean evicted)
+	{
+		if (evicted)
+			evictions.inc();
+		unlink(tile, evicted);
+		tile.release();
+	}
+
+	private static void link(Segment segment, Tile tile)
+	{
+		long key = tile.getKey();
+		segment.tiles.put(key, tile);
+		tile.segment = segment;
+		tile.lowPriority = isLowPriority(tile);
+		if (tile.lowPriority)
+		{
+			lowPriority.add(tile);
+			lowPriorityBytes += tile.byteCount;
+		}
+		else
+		{
+			policy.onInsert(tile, getId(segment, key));
+		}
+		count++;
+	}
+
+	private static void unlink(Tile tile, boolean evicted)
+	{
+		Segment segment = tile.segment;
+		long key = tile.getKey();
+		if (tile.lowPriority)
+		{
+			lowPriority.remove(tile);
+			lowPriorityBytes -= tile.byteCount;
+		}
+		else
+		{
+			policy.onRemove(tile, getId(segment, key), evicted);
+		}
+		segment.tiles.remove(key);
+		if (segment.tiles.isEmpty())
+		{
+			segment.detached = true;
+			segments.remove(segment.owner);
+		}
+		tile.segment = null;
+		count--;
+		totalBytes.addAndGet(-tile.byteCount);
+	}
+
+	/**
+	 * Returns identity of the tile in shared storage.
+	 */
+	private static long getId(Segment segment, long key)
+	{
+		return segment.owner * 0x9E3779B97F4A7C15L ^ key;
+	}
+
+	/**
+	 * Tiles of one owner
+	 */
+	static class Segment
+	{
+		final long owner;
+		final LongHashMap<Tile> tiles = new LongHashMap<>();
+		/**
+		 * Set when segment becomes empty and is removed from registry
+		 */
+		volatile boolean detached;
+
+		Segment(long owner)
+		{
+			this.owner = owner;
 		}
 	}
-}
\ No newline at end of file
+}
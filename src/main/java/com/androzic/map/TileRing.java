@@ -0,0 +1,113 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.androzic.map;
+
+/**
+ * Circular doubly linked list of tiles linked through tile fields, used by eviction policies
+ * to avoid allocation of list nodes. A tile can be a member of one ring only.
+ */
+class TileRing
+{
+	private Tile head;
+	private int size;
+
+	Tile head()
+	{
+		return head;
+	}
+
+	int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Returns the first tile that is not the specified one.
+	 */
+	Tile first(Tile except)
+	{
+		Tile tile = head;
+		if (tile == except)
+			tile = size > 1 ? tile.nextTile : null;
+		return tile;
+	}
+
+	/**
+	 * Adds tile to the end of the ring (just before the head).
+	 */
+	void add(Tile tile)
+	{
+		if (head == null)
+		{
+			tile.nextTile = tile;
+			tile.prevTile = tile;
+			head = tile;
+		}
+		else
+		{
+			tile.nextTile = head;
+			tile.prevTile = head.prevTile;
+			head.prevTile.nextTile = tile;
+			head.prevTile = tile;
+		}
+		size++;
+	}
+
+	void remove(Tile tile)
+	{
+		if (tile.nextTile == tile)
+		{
+			head = null;
+		}
+		else
+		{
+			tile.prevTile.nextTile = tile.nextTile;
+			tile.nextTile.prevTile = tile.prevTile;
+			if (head == tile)
+				head = tile.nextTile;
+		}
+		tile.nextTile = null;
+		tile.prevTile = null;
+		size--;
+	}
+
+	/**
+	 * Moves head to the next tile, so that current head becomes the last one.
+	 */
+	void advance()
+	{
+		if (head != null)
+			head = head.nextTile;
+	}
+
+	void clear()
+	{
+		Tile tile = head;
+		for (int i = 0; i < size; i++)
+		{
+			Tile next = tile.nextTile;
+			tile.nextTile = null;
+			tile.prevTile = null;
+			tile = next;
+		}
+		head = null;
+		size = 0;
+	}
+}
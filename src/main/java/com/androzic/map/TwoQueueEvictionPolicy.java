@@ -0,0 +1,165 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.androzic.map;
+
+import com.androzic.util.LongHashMap;
+
+/**
+ * Scan resistant 2Q policy. New tiles are put in a FIFO probation queue and are evicted from it
+ * first. Identities of tiles evicted from probation are remembered, if such tile is cached again
+ * it goes to the main queue which is managed by CLOCK. Tiles that are seen only once (e.g. during
+ * fast pan or fling) therefore never push out tiles that are used repeatedly. Accesses of tiles in
+ * probation are not counted since tiles are drawn on every frame while they are visible.
+ */
+public class TwoQueueEvictionPolicy implements EvictionPolicy
+{
+	private static final int QUEUE_IN = 1;
+	private static final int QUEUE_MAIN = 2;
+	private static final int MIN_GHOSTS = 16;
+	private static final Object PRESENT = new Object();
+
+	private final float inRatio;
+	private final float outRatio;
+	private final TileRing in = new TileRing();
+	private final TileRing main = new TileRing();
+	private final LongHashMap<Object> ghosts = new LongHashMap<>();
+	private long[] ghostQueue = new long[MIN_GHOSTS];
+	private int ghostHead;
+	private int ghostCount;
+
+	public TwoQueueEvictionPolicy()
+	{
+		this(0.25f, 0.5f);
+	}
+
+	/**
+	 * @param inRatio
+	 *            share of cached tiles kept in probation queue
+	 * @param outRatio
+	 *            number of remembered evicted tiles relative to number of cached tiles
+	 */
+	public TwoQueueEvictionPolicy(float inRatio, float outRatio)
+	{
+		this.inRatio = inRatio;
+		this.outRatio = outRatio;
+	}
+
+	@Override
+	public void onInsert(Tile tile, long id)
+	{
+		tile.referenced = false;
+		if (ghosts.remove(id) != null)
+		{
+			tile.queue = QUEUE_MAIN;
+			main.add(tile);
+		}
+		else
+		{
+			tile.queue = QUEUE_IN;
+			in.add(tile);
+		}
+	}
+
+	@Override
+	public void onAccess(Tile tile)
+	{
+		tile.referenced = true;
+	}
+
+	@Override
+	public void onRemove(Tile tile, long id, boolean evicted)
+	{
+		if (tile.queue == QUEUE_IN)
+		{
+			in.remove(tile);
+			if (evicted)
+				remember(id);
+		}
+		else
+		{
+			main.remove(tile);
+		}
+		tile.queue = 0;
+	}
+
+	@Override
+	public Tile victim(Tile keep)
+	{
+		int kin = Math.max(1, (int) ((in.size() + main.size()) * inRatio));
+		if (in.size() > kin || main.size() == 0)
+		{
+			Tile tile = in.first(keep);
+			if (tile != null)
+				return tile;
+		}
+		for (int n = main.size() * 2; n > 0; n--)
+		{
+			Tile tile = main.head();
+			main.advance();
+			if (tile == keep)
+				continue;
+			if (tile.referenced)
+			{
+				tile.referenced = false;
+				continue;
+			}
+			return tile;
+		}
+		return in.first(keep);
+	}
+
+	@Override
+	public void clear()
+	{
+		in.clear();
+		main.clear();
+		ghosts.clear();
+		ghostHead = 0;
+		ghostCount = 0;
+	}
+
+
+	/**
+	 * Remembers identity of evicted tile, the oldest identities are forgotten.
+	 */
+	private void remember(long id)
+	{
+		if (ghosts.put(id, PRESENT) != null)
+			return;
+		if (ghostCount == ghostQueue.length)
+		{
+			long[] queue = new long[ghostQueue.length * 2];
+			for (int i = 0; i < ghostCount; i++)
+				queue[i] = ghostQueue[(ghostHead + i) % ghostQueue.length];
+			ghostQueue = queue;
+			ghostHead = 0;
+		}
+		ghostQueue[(ghostHead + ghostCount) % ghostQueue.length] = id;
+		ghostCount++;
+
+		int max = Math.max(MIN_GHOSTS, (int) ((in.size() + main.size()) * outRatio));
+		while (ghostCount > max)
+		{
+			ghosts.remove(ghostQueue[ghostHead]);
+			ghostHead = (ghostHead + 1) % ghostQueue.length;
+			ghostCount--;
+		}
+	}
+}
@@ -23,8 +23,6 @@ package com.androzic.map.online;
 import java.util.ArrayList;
 import java.util.List;
 
-import android.graphics.Bitmap;
-
 import com.androzic.data.Bounds;
 import com.androzic.map.OnMapTileStateChangeListener;
 import com.androzic.map.Tile;
@@ -117,25 +115,17 @@ public class OnlineMap extends TileMap
 	}
 
 	@Override
-	public Bitmap getTile(int x, int y) throws OutOfMemoryError
+	protected Tile acquireTile(int x, int y) throws OutOfMemoryError
 	{
-		Tile tile = tileController.getTile(x, y, srcZoom);
-		if (tile.bitmap != null)
-		{
-			if (dynZoom != 1.0)
-			{
-		        int ss = (int) (dynZoom * tileSize);
-				tile.bitmap = Bitmap.createScaledBitmap(tile.bitmap, ss, ss, true);
-			}
-		}
-		return tile.bitmap;
+		// cached tiles are passed to controller as well so that placeholders can be queued again
+		return tileController.acquireTile(x, y, srcZoom);
 	}
 
 	@Override
-	public synchronized void setZoom(double z)
+	protected void setViewportTiles(double x, double y, int rx, int ry)
 	{
-		super.setZoom(z);
-		tileController.reset();
+		// requests of previous zoom and scrolled off tiles are cancelled here
+		tileController.setViewport(srcZoom, x, y, rx, ry);
 	}
 
 	@Override
@@ -179,6 +169,7 @@ public class OnlineMap extends TileMap
 		
 		info.add("corners:");
 */
+		info.addAll(statistics());
 	
 		return info;
 	}
@@ -0,0 +1,558 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map.online;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.androzic.Log;
+
+/**
+ * Online map tile cache stored in a single MBTiles compatible SQLite database per provider.
+ * Besides standard columns tiles table holds tile modification and last access time and HTTP
+ * validators used to revalidate expired tiles. When
+ * total size of tiles exceeds the limit least recently used tiles are deleted and freed
+ * database pages are released.
+ * <p>
+ * Total size of tiles is kept in metadata table and is updated by triggers. Stores are opened
+ * and trimmed in background threads, trimming is done in small batches so that tile loading
+ * is not blocked for long.
+ */
+public class PackedTileStore
+{
+	/**
+	 * Access time is not updated more often than this period (ms) to avoid a write on every read
+	 */
+	private static final long ACCESS_GRANULARITY = 3600000;
+	/**
+	 * Part of maximum size that is left after eviction
+	 */
+	private static final double EVICTION_RATIO = 0.9;
+	/**
+	 * Maximum number of tiles deleted at once
+	 */
+	private static final int EVICTION_BATCH = 64;
+	/**
+	 * Maximum number of database pages released at once
+	 */
+	private static final int VACUUM_BATCH = 256;
+	private static final String SIZE_KEY = "tile_data_size";
+
+	private static final String SQL_CREATE_TILES = "CREATE TABLE IF NOT EXISTS tiles (zoom_level integer, tile_column integer, tile_row integer, tile_data blob, modified integer, accessed integer, etag text, last_modified integer)";
+	private static final String SQL_CREATE_INDEX = "CREATE UNIQUE INDEX IF NOT EXISTS tile_index ON tiles (zoom_level, tile_column, tile_row)";
+	private static final String SQL_CREATE_ACCESS_INDEX = "CREATE INDEX IF NOT EXISTS access_index ON tiles (accessed)";
+	private static final String SQL_CREATE_METADATA = "CREATE TABLE IF NOT EXISTS metadata (name text, value text)";
+	private static final String SQL_CREATE_SIZE = "INSERT INTO metadata (name, value) SELECT '" + SIZE_KEY + "', (SELECT IFNULL(SUM(LENGTH(tile_data)), 0) FROM tiles) WHERE NOT EXISTS (SELECT 1 FROM metadata WHERE name = '" + SIZE_KEY + "')";
+	// replaced row is deleted without firing delete trigger, so its size is subtracted here
+	private static final String SQL_CREATE_INSERT_TRIGGER = "CREATE TRIGGER IF NOT EXISTS tile_insert BEFORE INSERT ON tiles BEGIN UPDATE metadata SET value = value + LENGTH(NEW.tile_data) - IFNULL((SELECT LENGTH(tile_data) FROM tiles WHERE zoom_level = NEW.zoom_level AND tile_column = NEW.tile_column AND tile_row = NEW.tile_row), 0) WHERE name = '" + SIZE_KEY + "'; END";
+	private static final String SQL_CREATE_DELETE_TRIGGER = "CREATE TRIGGER IF NOT EXISTS tile_delete AFTER DELETE ON tiles BEGIN UPDATE metadata SET value = value - LENGTH(OLD.tile_data) WHERE name = '" + SIZE_KEY + "'; END";
+	private static final String SQL_GET_TILE = "SELECT tile_data, modified, accessed FROM tiles WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?";
+	private static final String SQL_GET_VALIDATORS = "SELECT etag, last_modified FROM tiles WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?";
+	private static final String SQL_PUT_TILE = "INSERT OR REPLACE INTO tiles (zoom_level, tile_column, tile_row, tile_data, modified, accessed, etag, last_modified) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+	private static final String SQL_REFRESH_TILE = "UPDATE tiles SET modified = ?, accessed = ?, etag = ?, last_modified = ? WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?";
+	private static final String SQL_TOUCH_TILE = "UPDATE tiles SET accessed = ? WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?";
+	private static final String SQL_GET_SIZE = "SELECT value FROM metadata WHERE name = '" + SIZE_KEY + "'";
+	private static final String SQL_GET_COUNT = "SELECT COUNT(*) FROM tiles";
+	private static final String SQL_EVICT_TILES = "DELETE FROM tiles WHERE rowid IN (SELECT rowid FROM tiles ORDER BY accessed LIMIT ?)";
+
+	/**
+	 * Opened stores by provider, guarded by itself
+	 */
+	private static final HashMap<String, PackedTileStore> stores = new HashMap<>();
+	/**
+	 * Providers whose stores are being opened in background or have failed to open, guarded by stores
+	 */
+	private static final HashSet<String> opening = new HashSet<>();
+	private static final HashSet<String> failed = new HashSet<>();
+	/**
+	 * Serializes opening of databases, registry is not locked meanwhile
+	 */
+	private static final Object openLock = new Object();
+
+	private final SQLiteDatabase database;
+	private final SQLiteStatement putStatement;
+	private final SQLiteStatement touchStatement;
+	private final SQLiteStatement refreshStatement;
+	private final SQLiteStatement sizeStatement;
+	private final SQLiteStatement countStatement;
+	private final SQLiteStatement evictStatement;
+	private long maxSize;
+	private long size;
+	private boolean trimming;
+
+	private PackedTileStore(File file, long maxSize) throws SQLException
+	{
+		//noinspection ResultOfMethodCallIgnored
+		file.getParentFile().mkdirs();
+		// localized collators table is not created, otherwise auto vacuum can not be enabled
+		database = SQLiteDatabase.openDatabase(file.getPath(), null, SQLiteDatabase.CREATE_IF_NECESSARY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+		// lets free pages be released without full vacuum, takes effect only before tables are created
+		if (getPragma("auto_vacuum") != 2)
+		{
+			database.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+			// database created by previous version has to be rebuilt once
+			if (getPragma("auto_vacuum") != 2)
+				database.execSQL("VACUUM");
+		}
+		database.beginTransaction();
+		try
+		{
+			database.execSQL(SQL_CREATE_TILES);
+			addValidatorColumns();
+			database.execSQL(SQL_CREATE_INDEX);
+			database.execSQL(SQL_CREATE_ACCESS_INDEX);
+			database.execSQL(SQL_CREATE_METADATA);
+			// tiles are counted only once, when store is opened for the first time
+			database.execSQL(SQL_CREATE_SIZE);
+			database.execSQL(SQL_CREATE_INSERT_TRIGGER);
+			database.execSQL(SQL_CREATE_DELETE_TRIGGER);
+			database.setTransactionSuccessful();
+		}
+		finally
+		{
+			database.endTransaction();
+		}
+		putStatement = database.compileStatement(SQL_PUT_TILE);
+		touchStatement = database.compileStatement(SQL_TOUCH_TILE);
+		refreshStatement = database.compileStatement(SQL_REFRESH_TILE);
+		sizeStatement = database.compileStatement(SQL_GET_SIZE);
+		countStatement = database.compileStatement(SQL_GET_COUNT);
+		evictStatement = database.compileStatement(SQL_EVICT_TILES);
+		size = sizeStatement.simpleQueryForLong();
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Returns tile store of the provider opening it if necessary. Opening can take long,
+	 * so this method should not be called on UI thread.
+	 *
+	 * @param root
+	 *            cache directory
+	 * @param provider
+	 *            provider code
+	 * @param maxSize
+	 *            maximum size of tiles in bytes
+	 * @return tile store or null if database can not be opened
+	 */
+	public static PackedTileStore getStore(File root, String provider, long maxSize)
+	{
+		PackedTileStore store = findStore(provider, maxSize);
+		if (store != null)
+			return store;
+		synchronized (openLock)
+		{
+			synchronized (stores)
+			{
+				if (failed.contains(provider))
+					return null;
+			}
+			// store could be opened while waiting for the lock
+			store = findStore(provider, maxSize);
+			if (store != null)
+				return store;
+			File file = new File(root, "tiles" + File.separator + provider + ".mbtiles");
+			try
+			{
+				store = new PackedTileStore(file, maxSize);
+			}
+			catch (SQLException e)
+			{
+				Log.e("PackedTileStore", "Failed to open " + file.getAbsolutePath() + ": " + e.getMessage());
+			}
+			synchronized (stores)
+			{
+				if (store != null)
+					stores.put(provider, store);
+				else
+					failed.add(provider);
+			}
+			return store;
+		}
+	}
+
+	/**
+	 * Returns tile store of the provider if it is already opened, otherwise starts opening it
+	 * in background thread. Does not block, so can be used on UI thread.
+	 *
+	 * @return tile store or null if it is not opened yet or can not be opened
+	 */
+	public static PackedTileStore peekStore(final File root, final String provider, final long maxSize)
+	{
+		PackedTileStore store = findStore(provider, maxSize);
+		if (store != null)
+			return store;
+		synchronized (stores)
+		{
+			if (failed.contains(provider) || ! opening.add(provider))
+				return null;
+		}
+		new Thread("PackedTileStore") {
+			@Override
+			public void run()
+			{
+				getStore(root, provider, maxSize);
+				synchronized (stores)
+				{
+					opening.remove(provider);
+				}
+			}
+		}.start();
+		return null;
+	}
+
+	private static PackedTileStore findStore(String provider, long maxSize)
+	{
+		PackedTileStore store;
+		synchronized (stores)
+		{
+			store = stores.get(provider);
+		}
+		if (store != null)
+			store.setMaxSize(maxSize);
+		return store;
+	}
+
+	public synchronized void setMaxSize(long maxSize)
+	{
+		this.maxSize = maxSize;
+	}
+
+	public synchronized long getSize()
+	{
+		return size;
+	}
+
+	/**
+	 * Loads tile image.
+	 *
+	 * @param modified
+	 *            if not null, receives tile modification time as first element
+	 * @return tile image or null if tile is not stored
+	 */
+	public synchronized byte[] load(int x, int y, byte z, long[] modified)
+	{
+		String[] args = {String.valueOf(z), String.valueOf(x), String.valueOf(getRow(y, z))};
+		byte[] data = null;
+		long accessed = 0;
+		Cursor c = null;
+		try
+		{
+			c = database.rawQuery(SQL_GET_TILE, args);
+			if (c.moveToFirst())
+			{
+				data = c.getBlob(0);
+				if (modified != null)
+					modified[0] = c.getLong(1);
+				accessed = c.getLong(2);
+			}
+		}
+		catch (SQLException e)
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			if (c != null)
+				c.close();
+		}
+		long now = System.currentTimeMillis();
+		if (data != null && accessed + ACCESS_GRANULARITY < now)
+		{
+			try
+			{
+				touchStatement.bindLong(1, now);
+				touchStatement.bindLong(2, z);
+				touchStatement.bindLong(3, x);
+				touchStatement.bindLong(4, getRow(y, z));
+				touchStatement.execute();
+			}
+			catch (SQLException e)
+			{
+				e.printStackTrace();
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Loads HTTP validators of stored tile.
+	 *
+	 * @return validators or null if tile is not stored or has no validators
+	 */
+	public synchronized TileHttpClient.Validators loadValidators(int x, int y, byte z)
+	{
+		String[] args = {String.valueOf(z), String.valueOf(x), String.valueOf(getRow(y, z))};
+		TileHttpClient.Validators validators = null;
+		Cursor c = null;
+		try
+		{
+			c = database.rawQuery(SQL_GET_VALIDATORS, args);
+			if (c.moveToFirst())
+			{
+				validators = new TileHttpClient.Validators();
+				validators.etag = c.getString(0);
+				validators.lastModified = c.getLong(1);
+			}
+		}
+		catch (SQLException e)
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			if (c != null)
+				c.close();
+		}
+		return validators != null && !validators.isEmpty() ? validators : null;
+	}
+
+	/**
+	 * Stores tile image replacing existing one, evicts least recently used tiles if store becomes too large.
+	 */
+	public void save(int x, int y, byte z, byte[] data)
+	{
+		save(x, y, z, data, null);
+	}
+
+	/**
+	 * Stores tile image with its HTTP validators replacing existing one, evicts least recently
+	 * used tiles in background if store becomes too large.
+	 *
+	 * @param validators
+	 *            validators returned by server, can be null
+	 */
+	public synchronized void save(int x, int y, byte z, byte[] data, TileHttpClient.Validators validators)
+	{
+		long now = System.currentTimeMillis();
+		try
+		{
+			putStatement.bindLong(1, z);
+			putStatement.bindLong(2, x);
+			putStatement.bindLong(3, getRow(y, z));
+			putStatement.bindBlob(4, data);
+			putStatement.bindLong(5, now);
+			putStatement.bindLong(6, now);
+			bindValidators(putStatement, 7, validators);
+			putStatement.executeInsert();
+			size = sizeStatement.simpleQueryForLong();
+		}
+		catch (SQLException e)
+		{
+			e.printStackTrace();
+			return;
+		}
+		if (maxSize > 0 && size > maxSize && ! trimming)
+		{
+			trimming = true;
+			final long limit = (long) (maxSize * EVICTION_RATIO);
+			new Thread("PackedTileStore") {
+				@Override
+				public void run()
+				{
+					try
+					{
+						trim(limit);
+					}
+					finally
+					{
+						synchronized (PackedTileStore.this)
+						{
+							trimming = false;
+						}
+					}
+				}
+			}.start();
+		}
+	}
+
+	/**
+	 * Marks stored tile as fresh after server has confirmed that it has not changed.
+	 *
+	 * @param validators
+	 *            validators returned by server, can be null
+	 */
+	public synchronized void refresh(int x, int y, byte z, TileHttpClient.Validators validators)
+	{
+		long now = System.currentTimeMillis();
+		try
+		{
+			refreshStatement.bindLong(1, now);
+			refreshStatement.bindLong(2, now);
+			bindValidators(refreshStatement, 3, validators);
+			refreshStatement.bindLong(5, z);
+			refreshStatement.bindLong(6, x);
+			refreshStatement.bindLong(7, getRow(y, z));
+			refreshStatement.execute();
+		}
+		catch (SQLException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Deletes least recently used tiles until total size is below the limit and releases freed
+	 * space. Tiles are deleted in batches, store can be used by other threads between them.
+	 */
+	public void trim(long limit)
+	{
+		try
+		{
+			boolean trimmed = false;
+			while (true)
+			{
+				synchronized (this)
+				{
+					size = sizeStatement.simpleQueryForLong();
+					if (size <= limit)
+						break;
+					// estimate number of tiles to delete by average tile size
+					long count = countStatement.simpleQueryForLong();
+					if (count == 0)
+						break;
+					long average = Math.max(size / count, 1);
+					evictStatement.bindLong(1, Math.min(Math.max((size - limit) / average, 1), EVICTION_BATCH));
+					evictStatement.execute();
+					trimmed = true;
+				}
+			}
+			if (trimmed)
+				Log.i("PackedTileStore", "Trimmed to " + size + " bytes");
+			compact();
+		}
+		catch (SQLException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Returns free database pages to file system. Pages are released in batches, store can be
+	 * used by other threads between them.
+	 */
+	public void compact()
+	{
+		try
+		{
+			int pages;
+			do
+			{
+				synchronized (this)
+				{
+					// statement returns a row per released page and has to be stepped to the end
+					Cursor c = database.rawQuery("PRAGMA incremental_vacuum(" + VACUUM_BATCH + ")", null);
+					try
+					{
+						pages = c.getCount();
+					}
+					finally
+					{
+						c.close();
+					}
+				}
+			}
+			while (pages >= VACUUM_BATCH);
+		}
+		catch (SQLException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Deletes all tiles.
+	 */
+	public synchronized void clear()
+	{
+		try
+		{
+			database.execSQL("DELETE FROM tiles");
+			size = sizeStatement.simpleQueryForLong();
+			compact();
+		}
+		catch (SQLException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Adds validator columns to tiles table created by previous version.
+	 */
+	private void addValidatorColumns()
+	{
+		boolean found = false;
+		Cursor c = database.rawQuery("PRAGMA table_info(tiles)", null);
+		try
+		{
+			for (boolean more = c.moveToFirst(); more; more = c.moveToNext())
+			{
+				if ("etag".equals(c.getString(1)))
+					found = true;
+			}
+		}
+		finally
+		{
+			c.close();
+		}
+		if (! found)
+		{
+			database.execSQL("ALTER TABLE tiles ADD COLUMN etag text");
+			database.execSQL("ALTER TABLE tiles ADD COLUMN last_modified integer");
+		}
+	}
+
+	private long getPragma(String name)
+	{
+		Cursor c = database.rawQuery("PRAGMA " + name, null);
+		try
+		{
+			return c.moveToFirst() ? c.getLong(0) : 0;
+		}
+		finally
+		{
+			c.close();
+		}
+	}
+
+	private static void bindValidators(SQLiteStatement statement, int index, TileHttpClient.Validators validators)
+	{
+		if (validators != null && validators.etag != null)
+			statement.bindString(index, validators.etag);
+		else
+			statement.bindNull(index);
+		statement.bindLong(index + 1, validators != null ? validators.lastModified : 0);
+	}
+
+	/**
+	 * MBTiles use TMS tile numbering with Y axis pointing north.
+	 */
+	private static int getRow(int y, byte z)
+	{
+		return (1 << z) - 1 - y;
+	}
+}
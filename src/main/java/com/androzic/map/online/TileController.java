@@ -20,19 +20,66 @@
 
 package com.androzic.map.online;
 
-import java.util.Hashtable;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 
 import com.androzic.map.Tile;
 import com.androzic.map.TileRAMCache;
+import com.androzic.util.LongHashMap;
+import com.androzic.util.Metrics;
 
+/**
+ * Downloads tiles in background threads. Tiles closest to the viewport center at current zoom
+ * are downloaded first, requests for tiles that are no longer visible are cancelled.
+ */
 public class TileController extends Thread
 {
-	final LinkedList<Tile> pendingList = new LinkedList<>();
-	final Hashtable<Long, Tile> tileMap = new Hashtable<>();
+	/**
+	 * Number of tiles around visible area that are still downloaded
+	 */
+	private static final int MARGIN = 1;
+	/**
+	 * Maximum number of remembered cancelled requests
+	 */
+	static final int MAX_CANCELLED = 1024;
+
+	/**
+	 * Download requests ordered by priority, guarded by itself
+	 */
+	final PriorityQueue<Request> pendingQueue = new PriorityQueue<>();
+	final LongHashMap<Tile> tileMap = new LongHashMap<>();
+	/**
+	 * Cached placeholders and expired tiles whose download was cancelled in cancellation order,
+	 * the oldest are forgotten when there are too many of them, guarded by tileMap
+	 */
+	final LinkedHashMap<Long, Tile> cancelledMap = new LinkedHashMap<Long, Tile>()
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Tile> eldest)
+		{
+			return size() > MAX_CANCELLED;
+		}
+	};
 	Thread[] threads;
 	private TileProvider provider;
 	private TileRAMCache cache;
+	/**
+	 * Viewport center in tiles of focus zoom and number of visible tiles around it, guarded by pendingQueue
+	 */
+	private byte focusZoom = -1;
+	private double focusX;
+	private double focusY;
+	private int rangeX;
+	private int rangeY;
+	private long sequence;
+	private static final Metrics.Counter queued = Metrics.counter("online.queued");
+	private static final Metrics.Counter cancelled = Metrics.counter("online.cancelled");
 
 	public TileController(TileProvider provider)
 	{
@@ -51,12 +98,12 @@ public class TileController extends Thread
 		{
 			try
 			{
-				Tile t;
-				synchronized (pendingList)
+				Request request;
+				synchronized (pendingQueue)
 				{
-					t = pendingList.poll();
+					request = pendingQueue.poll();
 				}
-				if (t == null)
+				if (request == null)
 				{
 					synchronized (this)
 					{
@@ -64,13 +111,20 @@ public class TileController extends Thread
 					}
 					continue;
 				}
-				long key = t.getKey();
-				tileMap.remove(key);
-				TileFactory.downloadTile(provider, t);
-				if (t.bitmap != null)
+				Tile t = request.tile;
+				long key = request.key;
+				synchronized (tileMap)
+				{
+					tileMap.remove(key);
+				}
+				// cached placeholder is replaced by new tile so that cache accounts its size and priority
+				Tile downloaded = TileFactory.downloadTile(provider, t);
+				if (downloaded != null)
 				{
-					TileFactory.saveTile(provider, t);
-					cache.put(key, t);
+					// bitmap is returned to pool if tile is not cached
+					downloaded.acquire();
+					cache.put(key, downloaded);
+					downloaded.release();
 				}
 			}
 			catch (Exception e)
@@ -90,66 +144,208 @@ public class TileController extends Thread
 	}
 
 	/**
-	 * 
+	 * Returns tile marked as used so that its bitmap is not reused while it is drawn, caller
+	 * should release the tile. Missing tile is loaded from storage or generated from tile of
+	 * lower zoom and queued for download.
+	 *
 	 * @param tx
 	 *            The X position of the Tile to draw
 	 * @param ty
 	 *            The Y position of the Tile to draw
 	 * @param tz
 	 *            The Zoom value of the Tile to draw
-	 * @return The recovered Tile
+	 * @return The recovered Tile or null if there is nothing to draw yet
 	 */
-	public Tile getTile(int tx, int ty, byte tz)
+	public Tile acquireTile(int tx, int ty, byte tz)
 	{
 		long key = Tile.getKey(tx, ty, tz);
-		Tile t = cache.get(key);
-		if (t == null)
+		Tile t = cache.acquire(key);
+		if (t != null)
 		{
-			t = tileMap.get(key);
+			if (t.generated || t.expired)
+				requeue(key, t);
+			return t;
 		}
-		if (t == null)
+		synchronized (tileMap)
 		{
-			t = new Tile(tx, ty, tz);
-			TileFactory.loadTile(provider, t);
-			if (t.expired)
-				queueForDownload(key, t);
-			if (t.bitmap == null)
-			{
-				TileFactory.generateTile(provider, cache, t);
-				if (t.bitmap != null)
-					cache.put(key, t);
-				queueForDownload(key, t);
-			}
-			else
-			{
-				cache.put(key, t);
-			}
+			// tile without placeholder is being downloaded
+			if (tileMap.containsKey(key))
+				return null;
+		}
+		t = new Tile(tx, ty, tz);
+		TileFactory.loadTile(provider, t);
+		if (t.bitmap == null)
+			TileFactory.generateTile(provider, cache, t);
+		// download can replace bitmap concurrently, so acquisition is remembered
+		boolean acquired = t.bitmap != null;
+		if (acquired)
+		{
+			// acquired before it is cached, so it is not pooled if evicted while being drawn
+			t.acquire();
+			cache.put(key, t);
 		}
-		return t;
+		if (! acquired || t.generated || t.expired)
+			queueForDownload(key, t);
+		return acquired ? t : null;
 	}
 
-	private void queueForDownload(long key, Tile tile)
+	/**
+	 * Queues download of cached placeholder again if it has been cancelled.
+	 */
+	private void requeue(long key, Tile t)
 	{
-		tileMap.put(key, tile);
-		synchronized (pendingList)
+		// placeholder became visible again after its download was cancelled
+		boolean requeue;
+		synchronized (tileMap)
 		{
-			pendingList.add(tile);
+			requeue = cancelledMap.get(key) == t;
+			if (requeue)
+				cancelledMap.remove(key);
 		}
+		if (requeue)
+			queueForDownload(key, t);
+	}
+
+	void queueForDownload(long key, Tile tile)
+	{
+		synchronized (tileMap)
+		{
+			tileMap.put(key, tile);
+		}
+		Request request;
+		boolean accepted;
+		synchronized (pendingQueue)
+		{
+			request = new Request(tile, key, sequence++);
+			accepted = prioritize(request);
+			if (accepted)
+				pendingQueue.add(request);
+		}
+		if (! accepted)
+		{
+			// tile is already out of viewport
+			cancel(Collections.singletonList(request));
+			return;
+		}
+		queued.inc();
 		synchronized (this)
 		{
 			notifyAll();
 		}
 	}
 
+	/**
+	 * Sets currently visible area. Pending downloads are reordered by distance from its center,
+	 * requests for tiles outside of it are cancelled.
+	 *
+	 * @param zoom
+	 *            current zoom level
+	 * @param x
+	 *            X position of viewport center in tiles
+	 * @param y
+	 *            Y position of viewport center in tiles
+	 * @param rx
+	 *            number of tiles visible to each side of the center horizontally
+	 * @param ry
+	 *            number of tiles visible to each side of the center vertically
+	 */
+	public void setViewport(byte zoom, double x, double y, int rx, int ry)
+	{
+		ArrayList<Request> stale = null;
+		synchronized (pendingQueue)
+		{
+			// queue is not reordered while viewport center stays within the same tile
+			if (zoom == focusZoom && (int) x == (int) focusX && (int) y == (int) focusY && rx == rangeX && ry == rangeY)
+				return;
+			focusZoom = zoom;
+			focusX = x;
+			focusY = y;
+			rangeX = rx;
+			rangeY = ry;
+			if (pendingQueue.isEmpty())
+				return;
+			ArrayList<Request> requests = new ArrayList<>(pendingQueue);
+			pendingQueue.clear();
+			for (Request request : requests)
+			{
+				if (prioritize(request))
+				{
+					pendingQueue.add(request);
+				}
+				else
+				{
+					if (stale == null)
+						stale = new ArrayList<>();
+					stale.add(request);
+				}
+			}
+		}
+		if (stale != null)
+			cancel(stale);
+	}
+
+	/**
+	 * Forgets cancelled requests, cached placeholders are remembered so that they are queued
+	 * again when they become visible.
+	 */
+	private void cancel(List<Request> requests)
+	{
+		cancelled.add(requests.size());
+		synchronized (tileMap)
+		{
+			for (Request request : requests)
+			{
+				if (tileMap.get(request.key) == request.tile)
+					tileMap.remove(request.key);
+				if (request.tile.bitmap != null)
+				{
+					// cancelled again, moved to the end
+					cancelledMap.remove(request.key);
+					cancelledMap.put(request.key, request.tile);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Calculates request priority relative to current viewport.
+	 *
+	 * @return false if tile is too far from viewport and request should be cancelled
+	 */
+	private boolean prioritize(Request request)
+	{
+		if (focusZoom < 0)
+			return true;
+		Tile tile = request.tile;
+		int dz = tile.zoomLevel - focusZoom;
+		// only tiles of current and adjacent zoom levels are useful
+		if (Math.abs(dz) > 1)
+			return false;
+		// tile center in tiles of current zoom
+		double scale = Math.pow(2, -dz);
+		double dx = (tile.x + 0.5) * scale - focusX;
+		double dy = (tile.y + 0.5) * scale - focusY;
+		double half = scale / 2;
+		if (Math.abs(dx) - half > rangeX + MARGIN || Math.abs(dy) - half > rangeY + MARGIN)
+			return false;
+		request.zoomDistance = Math.abs(dz);
+		request.distance = dx * dx + dy * dy;
+		return true;
+	}
+
 	/**
 	 * Reset tile download queue
 	 */
 	public void reset()
 	{
-		tileMap.clear();
-		synchronized (pendingList)
+		synchronized (tileMap)
+		{
+			tileMap.clear();
+			cancelledMap.clear();
+		}
+		synchronized (pendingQueue)
 		{
-			pendingList.clear();
+			pendingQueue.clear();
 		}
 	}
 
@@ -157,4 +353,31 @@ public class TileController extends Thread
 	{
 		this.cache = cache;
 	}
+
+	static class Request implements Comparable<Request>
+	{
+		final Tile tile;
+		final long key;
+		final long sequence;
+		int zoomDistance;
+		double distance;
+
+		Request(Tile tile, long key, long sequence)
+		{
+			this.tile = tile;
+			this.key = key;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(Request another)
+		{
+			if (zoomDistance != another.zoomDistance)
+				return zoomDistance < another.zoomDistance ? -1 : 1;
+			int result = Double.compare(distance, another.distance);
+			if (result != 0)
+				return result;
+			return sequence < another.sequence ? -1 : sequence > another.sequence ? 1 : 0;
+		}
+	}
 }
\ No newline at end of file
@@ -20,51 +20,142 @@
 
 package com.androzic.map.online;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.URL;
-import java.net.URLConnection;
+import java.net.HttpURLConnection;
 
 import android.graphics.Bitmap;
-import android.graphics.Bitmap.CompressFormat;
-import android.graphics.BitmapFactory;
 import android.graphics.Matrix;
 
 import com.androzic.BaseApplication;
+import com.androzic.map.BitmapPool;
 import com.androzic.map.Tile;
 import com.androzic.map.TileRAMCache;
+import com.androzic.util.Metrics;
 
 public class TileFactory
 {
-	public static void downloadTile(TileProvider provider, Tile t)
+	private static final Metrics.Histogram downloadTime = Metrics.histogram("online.download");
+	private static final Metrics.Counter downloadErrors = Metrics.counter("online.download.errors");
+	private static final Metrics.Counter revalidated = Metrics.counter("online.revalidated");
+	private static final Metrics.Histogram loadTime = Metrics.histogram("online.load");
+	private static final Metrics.Histogram generateTime = Metrics.histogram("online.generate");
+
+	/**
+	 * Store tiles in a single database per provider instead of separate files
+	 */
+	public static boolean usePackedStore = false;
+	/**
+	 * Maximum size of tiles in packed store per provider, in bytes, zero means no limit
+	 */
+	public static long packedStoreMaxSize = 256L * 1024 * 1024;
+
+	/**
+	 * Downloads and decodes tile bitmap and saves tile image as received from server. Expired
+	 * tile is revalidated with conditional request, if server reports that it has not changed
+	 * only its check time is updated. Given tile is not modified as it can be cached and drawn
+	 * concurrently, caller should put returned tile in cache instead.
+	 *
+	 * @param t
+	 *            placeholder, expired or not yet loaded tile
+	 * @return new tile if it has been downloaded, revalidated or loaded from storage, null otherwise
+	 */
+	public static Tile downloadTile(TileProvider provider, Tile t)
 	{
 		String url = provider.getTileUri(t.x, t.y, t.zoomLevel);
 		if (url == null)
-			return;
+			return null;
+		Tile stored = null;
+		// tile could not be loaded by renderer while packed store was being opened
+		if (usePackedStore && (t.bitmap == null || t.generated))
+		{
+			stored = new Tile(t.x, t.y, t.zoomLevel);
+			loadTile(provider, stored, true);
+			if (stored.bitmap == null)
+			{
+				stored = null;
+			}
+			else if (! stored.expired)
+			{
+				if (provider.listener != null)
+					provider.listener.onTileObtained();
+				return stored;
+			}
+		}
+		boolean expired = stored != null || t.expired && ! t.generated && t.bitmap != null;
+		long start = Metrics.Histogram.start();
 		try
 		{
-			URLConnection c = new URL(url).openConnection();
-			c.setConnectTimeout(50000);
-			c.connect();
-			t.bitmap = BitmapFactory.decodeStream(c.getInputStream());
-			if (t.bitmap != null)
+			TileHttpClient.Validators validators = null;
+			if (expired)
+				validators = loadValidators(provider, t.x, t.y, t.zoomLevel);
+			TileHttpClient.Response response = TileHttpClient.get(url, validators, provider.code, provider.maxRequestsPerHost);
+			if (validators != null && response.code == HttpURLConnection.HTTP_NOT_MODIFIED)
+			{
+				// server may omit validators in 304 response
+				if (response.validators.etag == null)
+					response.validators.etag = validators.etag;
+				if (response.validators.lastModified <= 0)
+					response.validators.lastModified = validators.lastModified;
+				refreshTile(provider, t.x, t.y, t.zoomLevel, response.validators);
+				revalidated.inc();
+				// cached bitmap can not be shared, saved image is decoded again
+				if (stored == null)
+				{
+					stored = new Tile(t.x, t.y, t.zoomLevel);
+					loadTile(provider, stored, true);
+					if (stored.bitmap == null)
+						return null;
+				}
+				stored.expired = false;
+				return stored;
+			}
+			byte[] data = response.code == HttpURLConnection.HTTP_OK ? response.data : null;
+			Bitmap bitmap = data != null ? BitmapPool.decodeByteArray(data, 0, data.length) : null;
+			if (bitmap != null)
 			{
-				t.generated = false;
-				t.expired = false;
+				if (stored != null)
+					BitmapPool.release(stored.bitmap);
+				Tile tile = new Tile(t.x, t.y, t.zoomLevel);
+				tile.bitmap = bitmap;
+				downloadTime.stop(start);
+				// original image is saved, bitmap is not encoded again
+				saveTile(provider, data, t.x, t.y, t.zoomLevel, response.validators);
 				if (provider.listener != null)
 					provider.listener.onTileObtained();
+				return tile;
+			}
+			else
+			{
+				downloadErrors.inc();
 			}
 		}
 		catch (Exception e)
 		{
+			downloadErrors.inc();
 			e.printStackTrace();
 		}
+		// expired saved tile is still better than placeholder
+		return stored;
 	}
 
+	/**
+	 * Loads saved tile. Packed store is not waited for, if it is not opened yet tile is not loaded.
+	 */
 	public static void loadTile(TileProvider provider, Tile t)
+	{
+		loadTile(provider, t, false);
+	}
+
+	/**
+	 * Loads saved tile.
+	 *
+	 * @param wait
+	 *            if true, waits for packed store to open, should not be used on UI thread
+	 */
+	private static void loadTile(TileProvider provider, Tile t, boolean wait)
 	{
 		BaseApplication application = BaseApplication.getApplication();
 		if (application == null)
@@ -74,9 +165,30 @@ public class TileFactory
 		if (cache == null) // cache is not available now
 			return;
 
+		if (usePackedStore)
+		{
+			PackedTileStore store = wait ? PackedTileStore.getStore(cache, provider.code, packedStoreMaxSize) : PackedTileStore.peekStore(cache, provider.code, packedStoreMaxSize);
+			if (store == null && ! wait)
+				return;
+			if (store != null)
+			{
+				long start = Metrics.Histogram.start();
+				long[] modified = new long[1];
+				byte[] data = store.load(t.x, t.y, t.zoomLevel, modified);
+				if (data == null)
+					return;
+				t.bitmap = BitmapPool.decodeByteArray(data, 0, data.length);
+				t.expired = provider.tileExpiration > 0 && modified[0] + provider.tileExpiration < System.currentTimeMillis();
+				if (t.bitmap != null)
+					loadTime.stop(start);
+				return;
+			}
+		}
+
 		File file = getTileFile(cache, provider.code, t.x, t.y, t.zoomLevel);
 		if (! file.exists())
 			return;
+		long start = Metrics.Histogram.start();
 		try
 		{
 			FileInputStream fileInputStream;
@@ -86,8 +198,21 @@ public class TileFactory
 			fileInputStream.close();
 			if (count != data.length)
 				return;
-			t.bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
-			t.expired = provider.tileExpiration > 0 && file.lastModified() + provider.tileExpiration < System.currentTimeMillis();
+			t.bitmap = BitmapPool.decodeByteArray(data, 0, data.length);
+			if (provider.tileExpiration > 0)
+			{
+				long checked = file.lastModified();
+				// revalidated tile keeps its file, time of last check is recorded in index
+				if (checked + provider.tileExpiration < System.currentTimeMillis())
+				{
+					TileValidatorIndex.Entry entry = TileValidatorIndex.get(file);
+					if (entry != null && entry.checked > checked)
+						checked = entry.checked;
+				}
+				t.expired = checked + provider.tileExpiration < System.currentTimeMillis();
+			}
+			if (t.bitmap != null)
+				loadTime.stop(start);
 		}
 		catch (IOException e)
 		{
@@ -97,44 +222,70 @@ public class TileFactory
 	
 	public static void generateTile(TileProvider provider, TileRAMCache cache, Tile t)
 	{
+		long start = Metrics.Histogram.start();
 		byte parentTileZoom = (byte) (t.zoomLevel - 1);
 		int parentTileX = t.x / 2, parentTileY = t.y / 2, scale = 2;
 
 		// Search for parent tile
 		for (; parentTileZoom >= provider.minZoom; parentTileZoom--, parentTileX /= 2, parentTileY /= 2, scale *= 2)
 		{
-			Tile parentTile = new Tile(parentTileX, parentTileY, parentTileZoom);
-
-			if (cache.containsKey(parentTile.getKey()))
-				parentTile = cache.get(parentTile.getKey());
-			else
+			boolean cached = true;
+			Tile parentTile = cache.acquire(Tile.getKey(parentTileX, parentTileY, parentTileZoom), false);
+			if (parentTile == null)
+			{
+				cached = false;
+				parentTile = new Tile(parentTileX, parentTileY, parentTileZoom);
 				TileFactory.loadTile(provider, parentTile);
+			}
 
-			if (parentTile.bitmap != null && scale <= parentTile.bitmap.getWidth() && scale <= parentTile.bitmap.getHeight())
+			try
 			{
-				Matrix matrix = new Matrix();
-				matrix.postScale(scale, scale);
+				if (parentTile.bitmap != null && scale <= parentTile.bitmap.getWidth() && scale <= parentTile.bitmap.getHeight())
+				{
+					Matrix matrix = new Matrix();
+					matrix.postScale(scale, scale);
 
-				int miniTileWidth = parentTile.bitmap.getWidth() / scale;
-				int miniTileHeight = parentTile.bitmap.getHeight() / scale;
-				int fromX = (t.x % scale) * miniTileWidth;
-				int fromY = (t.y % scale) * miniTileHeight;
+					int miniTileWidth = parentTile.bitmap.getWidth() / scale;
+					int miniTileHeight = parentTile.bitmap.getHeight() / scale;
+					int fromX = (t.x % scale) * miniTileWidth;
+					int fromY = (t.y % scale) * miniTileHeight;
 
-				// Create mini bitmap which will be stretched to tile
-				Bitmap miniTileBitmap = Bitmap.createBitmap(parentTile.bitmap, fromX, fromY, miniTileWidth, miniTileHeight);
+					// Create mini bitmap which will be stretched to tile
+					Bitmap miniTileBitmap = Bitmap.createBitmap(parentTile.bitmap, fromX, fromY, miniTileWidth, miniTileHeight);
 
-				// Create tile bitmap from mini bitmap
-				t.bitmap = Bitmap.createBitmap(miniTileBitmap, 0, 0, miniTileWidth, miniTileHeight, matrix, false);
-				t.generated = true;
-				if (provider.listener != null)
-					provider.listener.onTileObtained();
-				miniTileBitmap.recycle();
-				break;
+					// Create tile bitmap from mini bitmap
+					t.bitmap = Bitmap.createBitmap(miniTileBitmap, 0, 0, miniTileWidth, miniTileHeight, matrix, false);
+					t.generated = true;
+					generateTime.stop(start);
+					if (provider.listener != null)
+						provider.listener.onTileObtained();
+					miniTileBitmap.recycle();
+					break;
+				}
+			}
+			finally
+			{
+				// parent tile bitmap is not needed anymore if it was not cached
+				if (cached)
+					parentTile.release();
+				else
+					BitmapPool.release(parentTile.bitmap);
 			}
 		}
 	}
 
 	public static void saveTile(TileProvider provider, byte[] dat, int tx, int ty, byte z)
+	{
+		saveTile(provider, dat, tx, ty, z, null);
+	}
+
+	/**
+	 * Saves tile image with HTTP validators that are used to revalidate tile when it expires.
+	 *
+	 * @param validators
+	 *            validators returned by server, can be null
+	 */
+	public static void saveTile(TileProvider provider, byte[] dat, int tx, int ty, byte z, TileHttpClient.Validators validators)
 	{
 		BaseApplication application = BaseApplication.getApplication();
 		if (application == null)
@@ -144,6 +295,16 @@ public class TileFactory
 		if (cache == null) // cache is not available now
 			return;
 
+		if (usePackedStore)
+		{
+			PackedTileStore store = PackedTileStore.getStore(cache, provider.code, packedStoreMaxSize);
+			if (store != null)
+			{
+				store.save(tx, ty, z, dat, validators);
+				return;
+			}
+		}
+
 		File file = getTileFile(cache, provider.code, tx, ty, z);
 		//noinspection ResultOfMethodCallIgnored
 		file.getParentFile().mkdirs();
@@ -154,6 +315,44 @@ public class TileFactory
 			fileOutputStream.write(dat);
 			fileOutputStream.flush();
 			fileOutputStream.close();
+			if (validators != null && ! validators.isEmpty())
+				TileValidatorIndex.put(file, validators, System.currentTimeMillis());
+			else
+				TileValidatorIndex.remove(file);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Marks saved tile as fresh after server has confirmed that it has not changed.
+	 */
+	private static void refreshTile(TileProvider provider, int tx, int ty, byte z, TileHttpClient.Validators validators)
+	{
+		BaseApplication application = BaseApplication.getApplication();
+		if (application == null)
+			return;
+
+		File cache = application.getCacheDir();
+		if (cache == null) // cache is not available now
+			return;
+
+		if (usePackedStore)
+		{
+			PackedTileStore store = PackedTileStore.getStore(cache, provider.code, packedStoreMaxSize);
+			if (store != null)
+			{
+				store.refresh(tx, ty, z, validators);
+				return;
+			}
+		}
+
+		File file = getTileFile(cache, provider.code, tx, ty, z);
+		try
+		{
+			TileValidatorIndex.put(file, validators, System.currentTimeMillis());
 		}
 		catch (IOException e)
 		{
@@ -161,15 +360,30 @@ public class TileFactory
 		}
 	}
 
-	public static void saveTile(TileProvider provider, Tile t)
+	/**
+	 * Returns HTTP validators of saved tile or null if they are not known.
+	 */
+	private static TileHttpClient.Validators loadValidators(TileProvider provider, int tx, int ty, byte z)
 	{
-		if (t.bitmap != null && ! t.bitmap.isRecycled())
+		BaseApplication application = BaseApplication.getApplication();
+		if (application == null)
+			return null;
+
+		File cache = application.getCacheDir();
+		if (cache == null) // cache is not available now
+			return null;
+
+		if (usePackedStore)
 		{
-			ByteArrayOutputStream bos = new ByteArrayOutputStream();
-			t.bitmap.compress(CompressFormat.PNG, 0 /*ignored for PNG*/, bos);
-			byte[] data = bos.toByteArray();
-			saveTile(provider, data, t.x, t.y, t.zoomLevel);
-		}			
+			PackedTileStore store = PackedTileStore.getStore(cache, provider.code, packedStoreMaxSize);
+			if (store != null)
+				return store.loadValidators(tx, ty, z);
+		}
+
+		TileValidatorIndex.Entry entry = TileValidatorIndex.get(getTileFile(cache, provider.code, tx, ty, z));
+		if (entry == null || entry.validators.isEmpty())
+			return null;
+		return entry.validators;
 	}
 
 	public static File getTileFile(File root, String provider, int x, int y, byte z)
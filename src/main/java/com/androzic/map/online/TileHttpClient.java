@@ -0,0 +1,231 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map.online;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.HashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Fetches tiles over HTTP reusing persistent connections. Platform HTTP stack keeps idle
+ * connections alive only if response body is read completely and stream is closed, so every
+ * response, including error ones, is consumed to the end. Number of simultaneous requests to
+ * one host is limited to avoid being throttled by tile servers. Cached tiles can be revalidated
+ * with conditional requests so that unchanged tiles are not downloaded again.
+ */
+public class TileHttpClient
+{
+	/**
+	 * Connection timeout in milliseconds
+	 */
+	public static int connectTimeout = 15000;
+	/**
+	 * Read timeout in milliseconds
+	 */
+	public static int readTimeout = 30000;
+	/**
+	 * Maximum number of simultaneous requests to one host made without explicit limit. Should
+	 * not exceed number of idle connections kept per host by platform (5 by default), otherwise
+	 * connections are not reused.
+	 */
+	public static int maxRequestsPerHost = 2;
+
+	/**
+	 * Request limits by group and host
+	 */
+	private static final HashMap<String, Limit> limits = new HashMap<>();
+
+	/**
+	 * Downloads resource.
+	 *
+	 * @param url
+	 *            resource url
+	 * @return response body or null if server has not returned it
+	 * @throws IOException
+	 *             if connection failed or timed out
+	 */
+	public static byte[] get(String url) throws IOException
+	{
+		Response response = get(url, null);
+		return response.code == HttpURLConnection.HTTP_OK ? response.data : null;
+	}
+
+	/**
+	 * Downloads resource if it has changed.
+	 *
+	 * @param url
+	 *            resource url
+	 * @param validators
+	 *            validators of cached copy or null if there is no cached copy
+	 * @return response with HTTP_NOT_MODIFIED code and no data if cached copy is still valid
+	 * @throws IOException
+	 *             if connection failed or timed out
+	 */
+	public static Response get(String url, Validators validators) throws IOException
+	{
+		return get(url, validators, null, maxRequestsPerHost);
+	}
+
+	/**
+	 * Downloads resource if it has changed limiting number of simultaneous requests to the
+	 * resource host made within the group. Limit change takes effect immediately.
+	 *
+	 * @param url
+	 *            resource url
+	 * @param validators
+	 *            validators of cached copy or null if there is no cached copy
+	 * @param group
+	 *            requests group, e.g. tile provider code, or null for default group
+	 * @param maxRequests
+	 *            maximum number of simultaneous requests to one host within the group
+	 * @return response with HTTP_NOT_MODIFIED code and no data if cached copy is still valid
+	 * @throws IOException
+	 *             if connection failed or timed out
+	 */
+	public static Response get(String url, Validators validators, String group, int maxRequests) throws IOException
+	{
+		URL u = new URL(url);
+		Semaphore semaphore = getSemaphore(group != null ? group + "@" + u.getHost() : u.getHost(), Math.max(1, maxRequests));
+		try
+		{
+			semaphore.acquire();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		try
+		{
+			URLConnection c = u.openConnection();
+			c.setConnectTimeout(connectTimeout);
+			c.setReadTimeout(readTimeout);
+			if (validators != null)
+			{
+				if (validators.etag != null)
+					c.setRequestProperty("If-None-Match", validators.etag);
+				if (validators.lastModified > 0)
+					c.setIfModifiedSince(validators.lastModified);
+			}
+			Response response = new Response();
+			response.code = c instanceof HttpURLConnection ? ((HttpURLConnection) c).getResponseCode() : HttpURLConnection.HTTP_OK;
+			response.validators.etag = c.getHeaderField("ETag");
+			response.validators.lastModified = c.getLastModified();
+			if (response.code != HttpURLConnection.HTTP_OK)
+			{
+				// drain body (it can be empty) so that connection can be reused
+				InputStream body = response.code >= HttpURLConnection.HTTP_BAD_REQUEST ? ((HttpURLConnection) c).getErrorStream() : c.getInputStream();
+				if (body != null)
+					readFully(body, 0);
+				return response;
+			}
+			response.data = readFully(c.getInputStream(), c.getContentLength());
+			return response;
+		}
+		finally
+		{
+			semaphore.release();
+		}
+	}
+
+	/**
+	 * HTTP cache validators of a resource.
+	 */
+	public static class Validators
+	{
+		/**
+		 * Entity tag or null
+		 */
+		public String etag;
+		/**
+		 * Last modification time in milliseconds or zero if unknown
+		 */
+		public long lastModified;
+
+		public boolean isEmpty()
+		{
+			return etag == null && lastModified <= 0;
+		}
+	}
+
+	public static class Response
+	{
+		/**
+		 * HTTP response code
+		 */
+		public int code;
+		/**
+		 * Response body, null if resource was not returned
+		 */
+		public byte[] data;
+		public final Validators validators = new Validators();
+	}
+
+	private static synchronized Semaphore getSemaphore(String key, int permits)
+	{
+		Limit limit = limits.get(key);
+		// requests in flight release permits of replaced semaphore
+		if (limit == null || limit.permits != permits)
+		{
+			limit = new Limit(permits);
+			limits.put(key, limit);
+		}
+		return limit.semaphore;
+	}
+
+	private static class Limit
+	{
+		final int permits;
+		final Semaphore semaphore;
+
+		Limit(int permits)
+		{
+			this.permits = permits;
+			this.semaphore = new Semaphore(permits, true);
+		}
+	}
+
+	/**
+	 * Reads stream till the end and closes it.
+	 */
+	private static byte[] readFully(InputStream in, int length) throws IOException
+	{
+		try
+		{
+			ByteArrayOutputStream out = new ByteArrayOutputStream(length > 0 ? length : 16384);
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) != -1)
+				out.write(buffer, 0, n);
+			return out.toByteArray();
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+}
@@ -55,6 +55,12 @@ public abstract class TileProvider
 	 */
 	public int tileExpiration = 0;
 	public int threads = 4;
+	/**
+	 * Maximum number of simultaneous requests to one tile server
+	 *
+	 * @see TileHttpClient#maxRequestsPerHost
+	 */
+	public int maxRequestsPerHost = 2;
 
 	public abstract void activate();
 
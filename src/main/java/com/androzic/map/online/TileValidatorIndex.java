@@ -0,0 +1,337 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map.online;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps HTTP validators of tiles stored in separate files. Validators of all tiles in one
+ * directory are held in a single index file, so no extra file is created per tile. Index also
+ * records when tile was last confirmed by server, tile file itself is not touched on
+ * revalidation.
+ * <p>
+ * Index of recently used directories is kept in memory, it is read from file once. Changes are
+ * appended to the file which is rewritten only when it accumulates too many superseded lines.
+ * Each directory is locked separately.
+ */
+class TileValidatorIndex
+{
+	/**
+	 * Name of index file, it does not clash with tile file names
+	 */
+	static final String INDEX_NAME = "validators";
+	/**
+	 * Maximum number of directory indexes kept in memory
+	 */
+	static final int MAX_DIRECTORIES = 64;
+	/**
+	 * Minimum number of superseded lines that causes index file to be rewritten
+	 */
+	static final int MIN_STALE_LINES = 32;
+
+	/**
+	 * Loaded directory indexes in access order, guarded by itself
+	 */
+	private static final LinkedHashMap<String, Directory> directories = new LinkedHashMap<String, Directory>(16, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Directory> eldest)
+		{
+			if (size() <= MAX_DIRECTORIES)
+				return false;
+			// evicted index should not be modified anymore, new one will be read from file
+			Directory directory = eldest.getValue();
+			synchronized (directory)
+			{
+				directory.closed = true;
+			}
+			return true;
+		}
+	};
+
+	static class Entry
+	{
+		final TileHttpClient.Validators validators = new TileHttpClient.Validators();
+		/**
+		 * Time when tile was last downloaded or revalidated, in milliseconds
+		 */
+		long checked;
+	}
+
+	/**
+	 * Returns index entry of tile or null if there is none.
+	 */
+	static Entry get(File tileFile)
+	{
+		while (true)
+		{
+			Directory directory = obtain(tileFile.getParentFile());
+			synchronized (directory)
+			{
+				if (directory.closed)
+					continue;
+				try
+				{
+					return directory.load().get(tileFile.getName());
+				}
+				catch (IOException e)
+				{
+					e.printStackTrace();
+					return null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stores tile validators and time of last check.
+	 */
+	static void put(File tileFile, TileHttpClient.Validators validators, long checked) throws IOException
+	{
+		Entry entry = new Entry();
+		// tabs and line breaks are not allowed in header values, but do not trust server
+		if (validators.etag != null && validators.etag.indexOf('\t') < 0 && validators.etag.indexOf('\n') < 0)
+			entry.validators.etag = validators.etag;
+		entry.validators.lastModified = validators.lastModified;
+		entry.checked = checked;
+		while (true)
+		{
+			Directory directory = obtain(tileFile.getParentFile());
+			synchronized (directory)
+			{
+				if (directory.closed)
+					continue;
+				directory.put(tileFile.getName(), entry);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Removes tile entry, index is deleted when it becomes empty.
+	 */
+	static void remove(File tileFile) throws IOException
+	{
+		while (true)
+		{
+			Directory directory = obtain(tileFile.getParentFile());
+			synchronized (directory)
+			{
+				if (directory.closed)
+					continue;
+				directory.remove(tileFile.getName());
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Forgets all loaded indexes.
+	 */
+	static void reset()
+	{
+		synchronized (directories)
+		{
+			for (Directory directory : directories.values())
+			{
+				synchronized (directory)
+				{
+					directory.closed = true;
+				}
+			}
+			directories.clear();
+		}
+	}
+
+	private static Directory obtain(File dir)
+	{
+		String path = dir.getPath();
+		synchronized (directories)
+		{
+			Directory directory = directories.get(path);
+			if (directory == null)
+			{
+				directory = new Directory(new File(dir, INDEX_NAME));
+				directories.put(path, directory);
+			}
+			return directory;
+		}
+	}
+
+	/**
+	 * Index of one directory, guarded by itself. Each line of index file holds file name, entity
+	 * tag, last modification and last check times separated by tabs, line with file name only
+	 * removes entry. Malformed lines are skipped.
+	 */
+	private static class Directory
+	{
+		final File file;
+		HashMap<String, Entry> entries;
+		/**
+		 * Number of lines in file that do not hold current entries
+		 */
+		int stale;
+		boolean closed;
+
+		Directory(File file)
+		{
+			this.file = file;
+		}
+
+		HashMap<String, Entry> load() throws IOException
+		{
+			if (entries != null)
+				return entries;
+			HashMap<String, Entry> loaded = new HashMap<>();
+			int lines = 0;
+			if (file.exists())
+			{
+				BufferedReader reader = new BufferedReader(new FileReader(file));
+				try
+				{
+					String line;
+					while ((line = reader.readLine()) != null)
+					{
+						lines++;
+						String[] fields = line.split("\t", -1);
+						if (fields.length == 1)
+						{
+							loaded.remove(fields[0]);
+							continue;
+						}
+						if (fields.length != 4)
+							continue;
+						try
+						{
+							Entry entry = new Entry();
+							if (! "".equals(fields[1]))
+								entry.validators.etag = fields[1];
+							entry.validators.lastModified = Long.parseLong(fields[2]);
+							entry.checked = Long.parseLong(fields[3]);
+							loaded.put(fields[0], entry);
+						}
+						catch (NumberFormatException ignore)
+						{
+						}
+					}
+				}
+				finally
+				{
+					reader.close();
+				}
+			}
+			entries = loaded;
+			stale = lines - loaded.size();
+			return entries;
+		}
+
+		void put(String name, Entry entry) throws IOException
+		{
+			if (load().put(name, entry) != null)
+				stale++;
+			if (! compact())
+				append(name, entry);
+		}
+
+		void remove(String name) throws IOException
+		{
+			if (load().remove(name) == null)
+				return;
+			if (entries.isEmpty())
+			{
+				stale = 0;
+				if (file.exists() && ! file.delete())
+					throw new IOException("Failed to delete " + file);
+				return;
+			}
+			stale += 2;
+			if (! compact())
+				append(name, null);
+		}
+
+		/**
+		 * Rewrites index file if it holds too many superseded lines.
+		 *
+		 * @return true if file has been rewritten
+		 */
+		private boolean compact() throws IOException
+		{
+			if (stale < MIN_STALE_LINES || stale < entries.size())
+				return false;
+			// written to temporary file and renamed so that index is never left half written
+			File temp = new File(file.getPath() + ".tmp");
+			FileWriter writer = new FileWriter(temp);
+			try
+			{
+				for (Map.Entry<String, Entry> e : entries.entrySet())
+					write(writer, e.getKey(), e.getValue());
+			}
+			finally
+			{
+				writer.close();
+			}
+			if (! temp.renameTo(file))
+			{
+				//noinspection ResultOfMethodCallIgnored
+				temp.delete();
+				throw new IOException("Failed to replace " + file);
+			}
+			stale = 0;
+			return true;
+		}
+
+		private void append(String name, Entry entry) throws IOException
+		{
+			FileWriter writer = new FileWriter(file, true);
+			try
+			{
+				write(writer, name, entry);
+			}
+			finally
+			{
+				writer.close();
+			}
+		}
+
+		private static void write(Writer writer, String name, Entry entry) throws IOException
+		{
+			StringBuilder line = new StringBuilder(name);
+			if (entry != null)
+			{
+				line.append('\t').append(entry.validators.etag != null ? entry.validators.etag : "");
+				line.append('\t').append(entry.validators.lastModified);
+				line.append('\t').append(entry.checked);
+			}
+			line.append('\n');
+			writer.write(line.toString());
+		}
+	}
+}
@@ -51,10 +51,16 @@ public class UnaidedTileProvider extends TileProvider
 
 		if (! servers.isEmpty())
 		{
-			if (servers.size() <= nextServer)
-				nextServer = 0;
-			uri = uri.replace("{$s}", servers.get(nextServer));
-			nextServer++;
+			// tiles are requested from several threads, servers are used in turn
+			String server;
+			synchronized (servers)
+			{
+				if (servers.size() <= nextServer)
+					nextServer = 0;
+				server = servers.get(nextServer);
+				nextServer++;
+			}
+			uri = uri.replace("{$s}", server);
 		}
 		if (inverseY)
 			y = (int) (Math.pow(2, z) - 1 - y);
@@ -20,9 +20,15 @@
 
 package com.androzic.map.ozf;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
 
 import com.androzic.Log;
 import com.jcraft.jzlib.JZlib;
@@ -44,6 +50,17 @@ public class OzfDecoder
 	public static final int OZF_TILE_WIDTH = 64;
 	public static final int OZF_TILE_HEIGHT = 64;
 
+	/**
+	 * Size of memory mapped file window. Windows overlap so that any tile fits into one window.
+	 */
+	private static final int MAPPING_WINDOW_SIZE = 16 * 1024 * 1024;
+	private static final int MAPPING_WINDOW_OVERLAP = 64 * 1024;
+
+	/**
+	 * Scale header consists of width, height and number of tiles per x and per y
+	 */
+	private static final int SCALE_HEADER_SIZE = 4 + 4 + 2 + 2;
+
 	private static final byte[] d0_key =
 	{
 		(byte) 0x2D, (byte) 0x4A, (byte) 0x43, (byte) 0xF1, (byte) 0x27, (byte) 0x9B, (byte) 0x69, (byte) 0x4F,
@@ -58,10 +75,34 @@ public class OzfDecoder
 		(byte) 0xD8, (byte) 0x5B, (byte) 0x8B, (byte) 0xC0
 	};
 	
-	private static ZStream zip = new ZStream();
-	private static int[] pixels = new int[OZF_TILE_WIDTH * OZF_TILE_HEIGHT];
+	/**
+	 * Per-thread decoding buffers, so that tiles of different files (or of the same file)
+	 * can be decoded simultaneously without allocations on every tile.
+	 */
+	private static final ThreadLocal<DecodeContext> decodeContext = new ThreadLocal<DecodeContext>() {
+		@Override
+		protected DecodeContext initialValue()
+		{
+			return new DecodeContext();
+		}
+	};
 
 	public static boolean useNativeCalls = false;
+	/**
+	 * Read tiles through memory mapped file instead of file reads. Should be set before opening OZF files.
+	 */
+	public static boolean useMemoryMapping = false;
+	/**
+	 * Keep decoded OZFX3 tiles in persistent cache next to image file. Should be set before opening OZF files.
+	 */
+	public static boolean useTileCache = false;
+	/**
+	 * Store detected OZFX3 encryption depth in a small file next to image file so that it is
+	 * not probed again next time. Should be set before opening OZF files.
+	 */
+	public static boolean cacheEncryptionDepth = false;
+
+	public static final String DEPTH_CACHE_EXTENSION = ".depth";
 
 	public final static byte readByte(RandomAccessFile reader) throws IOException
 	{
@@ -111,63 +152,201 @@ public class OzfDecoder
 		return file.images[scale].ytiles;
 	}
 
-	public static int[] getTile(OzfFile file, int scale, int x, int y, int w, int h)
+	private static boolean isValidTile(OzfFile file, int scale, int x, int y)
 	{
 		if (scale > file.scales - 1)
-			return null;
+			return false;
 		
 		if (x > file.images[scale].xtiles - 1)
-			return null;
+			return false;
 
 		if (y > file.images[scale].ytiles - 1)
-			return null;
+			return false;
 
 		if (x < 0)
-			return null;
+			return false;
 
 		if (y < 0)
+			return false;
+
+		return true;
+	}
+
+	public static int[] getTile(OzfFile file, int scale, int x, int y, int w, int h)
+	{
+		if (! isValidTile(file, scale, x, y))
+			return null;
+		if (! loadScale(file, scale))
 			return null;
 		
 		int i = y * file.images[scale].xtiles + x;
 
 		if (useNativeCalls)
 		{
-			return getTileNative(file.fileptr, file.type, file.key, file.images[scale].encryption_depth, file.scales_table[scale], i, w, h, file.images[scale].palette);
+			// native decoder takes raw 32-bit offset
+			return getTileNative(file.fileptr, file.type, file.key, file.images[scale].encryption_depth, (int) file.scales_table[scale], i, w, h, file.images[scale].palette);
+		}
+
+		DecodeContext ctx = decodeContext.get();
+		byte[] decompressed = decodeTile(file, scale, i, ctx);
+		if (decompressed == null)
+			return null;
+
+		byte[] palette = file.images[scale].palette;
+		int[] pixels = ctx.pixels;
+
+		int tile_z = OZF_TILE_WIDTH * (OZF_TILE_HEIGHT - 1) * 4;
+		int tile_x = 0;
+
+		for(int j = 0; j < OZF_TILE_WIDTH * OZF_TILE_HEIGHT; j++)
+		{
+			int c = decompressed[j] & 0xFF;
+			
+			int r = palette[c*4 + 2];
+			int g = palette[c*4 + 1];
+			int b = palette[c*4 + 0];
+			int a = 255;
+			
+			int k = ((OZF_TILE_WIDTH - 1) - (j / OZF_TILE_WIDTH)) * OZF_TILE_WIDTH + tile_x;
+			pixels[k] = (a & 0xFF) << 24 | (r & 0xFF) << 16 | (g & 0xFF) << 8 | (b & 0xFF);
+
+			tile_x++;
+			tile_z += 4;
+			if (tile_x == OZF_TILE_WIDTH)
+			{
+				tile_x = 0;
+				tile_z -= OZF_TILE_WIDTH * 4 * 2;
+			}
 		}
 
+		return pixels;
+	}
+
+	/**
+	 * Decodes tile directly to RGB565 pixels suitable for Bitmap.copyPixelsFromBuffer().
+	 * Returned buffer is reused by subsequent calls in the same thread.
+	 */
+	public static ShortBuffer getTileRGB565(OzfFile file, int scale, int x, int y)
+	{
+		return getTileRGB565(file, scale, x, y, OZF_TILE_WIDTH, OZF_TILE_HEIGHT, false);
+	}
+
+	/**
+	 * Decodes tile directly to RGB565 pixels resampling it to the requested size.
+	 * Returned buffer is reused by subsequent calls in the same thread.
+	 *
+	 * @param w width of resulting tile
+	 * @param h height of resulting tile
+	 * @param filter if true, reduced tile pixels are averaged over source pixels (box filter), otherwise nearest pixel is taken
+	 */
+	public static ShortBuffer getTileRGB565(OzfFile file, int scale, int x, int y, int w, int h, boolean filter)
+	{
+		if (! isValidTile(file, scale, x, y))
+			return null;
+		if (! loadScale(file, scale))
+			return null;
+
+		int i = y * file.images[scale].xtiles + x;
+
+		DecodeContext ctx = decodeContext.get();
+		byte[] decompressed = decodeTile(file, scale, i, ctx);
+		if (decompressed == null)
+			return null;
+
+		short[] palette565 = file.images[scale].palette565;
+		ShortBuffer buffer = ctx.getOutput(w * h);
+		short[] pixels = buffer.array();
+
+		if (w == OZF_TILE_WIDTH && h == OZF_TILE_HEIGHT)
+		{
+			// image is stored bottom-up
+			for (int row = 0; row < OZF_TILE_HEIGHT; row++)
+			{
+				int src = row * OZF_TILE_WIDTH;
+				int dst = (OZF_TILE_HEIGHT - 1 - row) * OZF_TILE_WIDTH;
+				for (int col = 0; col < OZF_TILE_WIDTH; col++)
+					pixels[dst + col] = palette565[decompressed[src + col] & 0xFF];
+			}
+			return buffer;
+		}
+
+		byte[] palette = file.images[scale].palette;
+
+		int k = 0;
+		for (int dy = 0; dy < h; dy++)
+		{
+			int sy0 = dy * OZF_TILE_HEIGHT / h;
+			int sy1 = Math.max(sy0 + 1, (dy + 1) * OZF_TILE_HEIGHT / h);
+			for (int dx = 0; dx < w; dx++)
+			{
+				int sx0 = dx * OZF_TILE_WIDTH / w;
+				if (! filter)
+				{
+					pixels[k++] = palette565[decompressed[(OZF_TILE_HEIGHT - 1 - sy0) * OZF_TILE_WIDTH + sx0] & 0xFF];
+					continue;
+				}
+				int sx1 = Math.max(sx0 + 1, (dx + 1) * OZF_TILE_WIDTH / w);
+				int r = 0, g = 0, b = 0;
+				for (int sy = sy0; sy < sy1; sy++)
+				{
+					int src = (OZF_TILE_HEIGHT - 1 - sy) * OZF_TILE_WIDTH;
+					for (int sx = sx0; sx < sx1; sx++)
+					{
+						int c = (decompressed[src + sx] & 0xFF) * 4;
+						r += palette[c + 2] & 0xFF;
+						g += palette[c + 1] & 0xFF;
+						b += palette[c + 0] & 0xFF;
+					}
+				}
+				int n = (sy1 - sy0) * (sx1 - sx0);
+				r /= n;
+				g /= n;
+				b /= n;
+				pixels[k++] = (short) ((r & 0xF8) << 8 | (g & 0xFC) << 3 | b >> 3);
+			}
+		}
+
+		return buffer;
+	}
+
+	/**
+	 * Reads, decrypts and inflates tile data.
+	 *
+	 * @return palette indexes of tile pixels (bottom-up) or null on error
+	 */
+	private static byte[] decodeTile(OzfFile file, int scale, int i, DecodeContext ctx)
+	{
+		OzfTileCache tileCache = file.tileCache;
+		if (tileCache != null && tileCache.read(scale, i, ctx.decompressed))
+			return ctx.decompressed;
+
 		int tilesize;
 		byte[] tile;
 		
+		int[] tiles = file.images[scale].tiles;
+		// offsets are unsigned
+		long tilepos = tiles[i] & 0xFFFFFFFFL;
+		long tilepos1 = tiles[i + 1] & 0xFFFFFFFFL;
+
+		tilesize = (int) (tilepos1 - tilepos);
+		tile = ctx.getInput(tilesize);
+
 		try
 		{
-			file.reader.seek(file.scales_table[scale]);
-			file.reader.skipBytes(1036);
-			file.reader.skipBytes(i * 4);
-	
-			int tilepos, tilepos1;
-	
-			if (file.type == OzfFile.OZF_STREAM_ENCRYPTED)
+			MappedByteBuffer[] mapping = file.mapping;
+			if (mapping != null)
 			{
-				byte[] buffer = new byte[4];
-				file.reader.read(buffer);
-				ozf_decode1(buffer, buffer.length, (byte) file.key);
-				tilepos = getInt(buffer, 0);
-				file.reader.read(buffer);
-				ozf_decode1(buffer, buffer.length, (byte) file.key);
-				tilepos1 = getInt(buffer, 0);			
+				readMappedTile(file, mapping, tilepos, tile, tilesize);
 			}
 			else
 			{
-				tilepos = readInt(file.reader);
-				tilepos1 = readInt(file.reader);
+				// reader position is shared, so file access must be serialized
+				synchronized (file.reader)
+				{
+					file.reader.seek(tilepos);
+					file.reader.read(tile, 0, tilesize);
+				}
 			}
-	
-			tilesize = tilepos1 - tilepos;
-	
-			tile = new byte[tilesize];
-			
-			file.reader.seek(tilepos);
-			file.reader.read(tile);
 		}
 		catch (IOException e)
 		{
@@ -191,7 +370,8 @@ public class OzfDecoder
 		}
 	
 		int decompressed_size = OZF_TILE_WIDTH * OZF_TILE_HEIGHT;
-		byte[] decompressed = new byte[decompressed_size];
+		byte[] decompressed = ctx.decompressed;
+		ZStream zip = ctx.zip;
 		
 	    zip.next_in=tile;
 	    zip.avail_in = tilesize;
@@ -209,36 +389,44 @@ public class OzfDecoder
 	    decompressed_size = (int) zip.total_out;
 	    zip.inflateEnd();
 
-		byte[] palette = file.images[scale].palette;
+		if (tileCache != null && decompressed_size == decompressed.length)
+			tileCache.write(scale, i, decompressed);
 
-		int tile_z = OZF_TILE_WIDTH * (OZF_TILE_HEIGHT - 1) * 4;
-		int tile_x = 0;
+		return decompressed;
+	}
 
-		for(int j = 0; j < OZF_TILE_WIDTH * OZF_TILE_HEIGHT; j++)
+	/**
+	 * Copies tile data from memory mapped file. Windows are mapped on first access.
+	 */
+	private static void readMappedTile(OzfFile file, MappedByteBuffer[] mapping, long position, byte[] dest, int size) throws IOException
+	{
+		int w = (int) (position / MAPPING_WINDOW_SIZE);
+		long start = (long) w * MAPPING_WINDOW_SIZE;
+		MappedByteBuffer window;
+		synchronized (mapping)
 		{
-			int c = decompressed[j] & 0xFF;
-			
-			int r = palette[c*4 + 2];
-			int g = palette[c*4 + 1];
-			int b = palette[c*4 + 0];
-			int a = 255;
-			
-			int k = ((OZF_TILE_WIDTH - 1) - (j / OZF_TILE_WIDTH)) * OZF_TILE_WIDTH + tile_x;
-			pixels[k] = (a & 0xFF) << 24 | (r & 0xFF) << 16 | (g & 0xFF) << 8 | (b & 0xFF);
-
-			tile_x++;
-			tile_z += 4;
-			if (tile_x == OZF_TILE_WIDTH)
+			window = mapping[w];
+			if (window == null)
 			{
-				tile_x = 0;
-				tile_z -= OZF_TILE_WIDTH * 4 * 2;
+				long length = Math.min(MAPPING_WINDOW_SIZE + MAPPING_WINDOW_OVERLAP, file.size - start);
+				window = file.reader.getChannel().map(FileChannel.MapMode.READ_ONLY, start, length);
+				mapping[w] = window;
 			}
 		}
-
-		return pixels;
+		// buffer position is shared between threads
+		synchronized (window)
+		{
+			window.position((int) (position - start));
+			window.get(dest, 0, size);
+		}
 	}
 
 	private static void ozf_decode1(byte[] source, int n, byte key)
+	{
+		ozf_decode1(source, 0, n, key);
+	}
+
+	private static void ozf_decode1(byte[] source, int offset, int n, byte key)
 	{
 		for(int j = 0; j < n; j++)
 		{
@@ -246,13 +434,45 @@ public class OzfDecoder
 			
 			byte c = d1_key[k];
 			c += (key & 0xFF);
-			byte c1	= source[j];
+			byte c1	= source[offset + j];
 			c ^= c1;
-			source[j] = c;
+			source[offset + j] = c;
+		}
+	}
+
+	/**
+	 * Reads tile offset table of the scale. Reader should be positioned at the beginning of the table.
+	 * Table contains one extra entry marking the end of the last tile.
+	 */
+	private static int[] readTileTable(OzfFile ozfFile, int xtiles, int ytiles) throws IOException
+	{
+		int n = xtiles * ytiles + 1;
+		byte[] buffer = new byte[n * 4];
+		ozfFile.reader.readFully(buffer);
+		int[] tiles = new int[n];
+		for (int j = 0; j < n; j++)
+		{
+			// every entry is encrypted separately
+			if (ozfFile.type == OzfFile.OZF_STREAM_ENCRYPTED)
+				ozf_decode1(buffer, j * 4, 4, (byte) ozfFile.key);
+			tiles[j] = getInt(buffer, j * 4);
 		}
+		return tiles;
 	}
 
 	public static OzfFile open(File file) throws IOException, OutOfMemoryError
+	{
+		return open(file, false);
+	}
+
+	/**
+	 * Opens OZF file.
+	 *
+	 * @param headerOnly if true, only image dimensions and scale headers are read, palettes, tile
+	 *                   tables and encryption depth of each scale are read when first tile of that
+	 *                   scale is requested
+	 */
+	public static OzfFile open(File file, boolean headerOnly) throws IOException, OutOfMemoryError
 	{
 		Log.d("OZF", "opening " + file.getName());
 		
@@ -281,6 +501,9 @@ public class OzfDecoder
 			Log.d("OZF", "stream key = " + String.format("%#x", ozfFile.key));
 
 			initEncryptedStream(ozfFile);
+			ozfFile.depths = cacheEncryptionDepth ? readDepthCache(file, ozfFile.scales) : null;
+			if (ozfFile.depths == null)
+				ozfFile.depths = new int[ozfFile.scales];
 		}
 		else if (ozfFile.type == OzfFile.OZF_STREAM_DEFAULT)
 		{
@@ -291,11 +514,27 @@ public class OzfDecoder
 		{
 			throw new IllegalArgumentException("Unsupported map image format");
 		}
+
+		if (! headerOnly)
+		{
+			boolean probed = false;
+			for (int i = 0; i < ozfFile.scales; i++)
+				probed |= readScale(ozfFile, i);
+			if (probed && cacheEncryptionDepth)
+				writeDepthCache(file, ozfFile.depths);
+		}
 		
 		if (useNativeCalls)
 		{
 			ozfFile.fileptr = openImageNative(file.getAbsolutePath());
 		}
+		else
+		{
+			if (useMemoryMapping)
+				ozfFile.mapping = new MappedByteBuffer[(int) (ozfFile.size / MAPPING_WINDOW_SIZE) + 1];
+			if (useTileCache && ozfFile.type == OzfFile.OZF_STREAM_ENCRYPTED)
+				ozfFile.tileCache = OzfTileCache.open(file);
+		}
 		
 		return ozfFile;
 	}
@@ -303,7 +542,7 @@ public class OzfDecoder
 	private static void initRawStream(OzfFile ozfFile) throws IOException, OutOfMemoryError
 	{
 		long offset;
-		int scales_table_offset;
+		long scales_table_offset;
 		
 		Log.d("OZF", "processing raw stream");
 
@@ -343,7 +582,7 @@ public class OzfDecoder
 		offset = ozfFile.size - 4;
 		Log.d("OZF", "Offset:" + offset);
 		reader.seek(offset);
-		scales_table_offset = readInt(reader);
+		scales_table_offset = readInt(reader) & 0xFFFFFFFFL;
 		
 		Log.d("OZF", "scales table starts at: " + scales_table_offset);
 
@@ -351,13 +590,13 @@ public class OzfDecoder
 
 	 	Log.d("OZF", "scales total: " + ozfFile.scales);
 
-		ozfFile.scales_table = new int[ozfFile.scales];
+		ozfFile.scales_table = new long[ozfFile.scales];
 		ozfFile.newImages();
 
 		reader.seek(scales_table_offset);
 		for (int i = 0; i < ozfFile.scales; i++)
 		{
-			ozfFile.scales_table[i] = readInt(reader);
+			ozfFile.scales_table[i] = readInt(reader) & 0xFFFFFFFFL;
 		}
 		
 		for (int i = 0; i < ozfFile.scales; i++)
@@ -375,17 +614,14 @@ public class OzfDecoder
 			Log.d("OZF", "\theight:\t" + ozfFile.images[i].height);
 			Log.d("OZF", "\ttiles per x:\t" + ozfFile.images[i].xtiles);
 			Log.d("OZF", "\ttiles per y:\t" + ozfFile.images[i].ytiles);
-		
-			ozfFile.images[i].palette = new byte[256*4];
-			reader.read(ozfFile.images[i].palette);
 		}
 	}
 
 	private static void initEncryptedStream(OzfFile ozfFile) throws IOException, OutOfMemoryError
 	{
 		int bytes_per_infoblock;
-		int offset;
-		int scales_table_offset;
+		long offset;
+		long scales_table_offset;
 		byte[] buffer;
 		
 		Log.d("OZF", "processing encrypted stream\n");
@@ -419,7 +655,7 @@ public class OzfDecoder
 		Log.d("OZF", "\tdepth:\t" + ozfFile.ozf3.depth);
 		Log.d("OZF", "\tbpp:\t" + ozfFile.ozf3.bpp);
 
-		offset = (int) (ozfFile.size - 4);
+		offset = ozfFile.size - 4;
 		
 		reader.seek(offset);
 		
@@ -427,7 +663,7 @@ public class OzfDecoder
 		reader.read(buffer);
 		ozf_decode1(buffer, buffer.length, (byte) ozfFile.key);
 
-		scales_table_offset = getInt(buffer, 0);
+		scales_table_offset = getInt(buffer, 0) & 0xFFFFFFFFL;
 		
 		Log.d("OZF", "scales table starts at: " + scales_table_offset);
 
@@ -442,7 +678,7 @@ public class OzfDecoder
 	 		ozfFile.ozf3.bpp < 0 ||
 	 		ozfFile.ozf3.depth < 0) throw new IOException("Couldn't decode OZFX3 file");
 	 	
-		ozfFile.scales_table = new int[ozfFile.scales];
+		ozfFile.scales_table = new long[ozfFile.scales];
 		ozfFile.newImages();
 
 		reader.seek(scales_table_offset);
@@ -452,7 +688,7 @@ public class OzfDecoder
 			buffer = new byte[4];
 			reader.read(buffer);
 			ozf_decode1(buffer, buffer.length, (byte) ozfFile.key);
-			ozfFile.scales_table[i] = getInt(buffer, 0);
+			ozfFile.scales_table[i] = getInt(buffer, 0) & 0xFFFFFFFFL;
 		}
 		
 		for (int i = 0; i < ozfFile.scales; i++)
@@ -480,34 +716,175 @@ public class OzfDecoder
 			Log.d("OZF", "\theight:\t" + ozfFile.images[i].height);
 			Log.d("OZF", "\ttiles per x:\t" + ozfFile.images[i].xtiles);
 			Log.d("OZF", "\ttiles per y:\t" + ozfFile.images[i].ytiles);
+		}
+	}
 
-			ozfFile.images[i].palette = new byte[256*4];
-			reader.read(ozfFile.images[i].palette);
-			ozf_decode1(ozfFile.images[i].palette, 256*4, (byte) ozfFile.key);
-			
-			int[] tiles = new int[2];
-			
-			buffer = new byte[4];
-			for (int j = 0; j < 2; j++)
+	/**
+	 * Reads palette, tile table and encryption depth of the scale if they are not read yet.
+	 *
+	 * @return false if scale data can not be read
+	 */
+	private static boolean loadScale(OzfFile file, int scale)
+	{
+		if (file.images[scale].loaded)
+			return true;
+		try
+		{
+			synchronized (file.reader)
 			{
-				reader.read(buffer);
-				ozf_decode1(buffer, buffer.length, (byte) ozfFile.key);
-				tiles[j] = getInt(buffer, 0);
+				if (readScale(file, scale) && cacheEncryptionDepth)
+					writeDepthCache(file.file, file.depths);
 			}
+			return true;
+		}
+		catch (IOException e)
+		{
+			Log.e("OZF", "failed to read scale " + scale + ": " + e.getMessage());
+			return false;
+		}
+	}
 
-			int tilesize = tiles[1] - tiles[0];
+	/**
+	 * Reads palette, tile table and encryption depth of the scale. File reader should not
+	 * be used by other threads meanwhile.
+	 *
+	 * @return true if encryption depth had to be probed
+	 */
+	private static boolean readScale(OzfFile ozfFile, int i) throws IOException, OutOfMemoryError
+	{
+		OzfFile.OzfImageHeader image = ozfFile.images[i];
+		if (image.loaded)
+			return false;
 
-			byte[] tile = new byte[tilesize];
-			
-			reader.seek(tiles[0]);
-			reader.read(tile);
-												
-			ozfFile.images[i].encryption_depth = getEncyptionDepth(tile, tilesize, ozfFile.key);
-						
-			Log.d("OZF", "\tencryption depth:\t" + ozfFile.images[i].encryption_depth);
+		RandomAccessFile reader = ozfFile.reader;
+		boolean encrypted = ozfFile.type == OzfFile.OZF_STREAM_ENCRYPTED;
+		boolean probed = false;
+
+		reader.seek(ozfFile.scales_table[i] + SCALE_HEADER_SIZE);
+
+		byte[] palette = new byte[256*4];
+		reader.readFully(palette);
+		if (encrypted)
+			ozf_decode1(palette, palette.length, (byte) ozfFile.key);
+		image.palette = palette;
+		image.palette565 = getPalette565(palette);
+
+		int[] tiles = readTileTable(ozfFile, image.xtiles, image.ytiles);
+		image.tiles = tiles;
+
+		if (encrypted)
+		{
+			int depth = ozfFile.depths[i];
+			if (depth == 0)
+			{
+				long tilepos = tiles[0] & 0xFFFFFFFFL;
+				int tilesize = (int) ((tiles[1] & 0xFFFFFFFFL) - tilepos);
+
+				byte[] tile = new byte[tilesize];
+
+				reader.seek(tilepos);
+				reader.read(tile);
+
+				// scales usually share the same depth, so check already known one first
+				int hint = OZFX3_ZDATA_ENCRYPTION_LENGTH;
+				for (int k = 0; k < ozfFile.scales; k++)
+				{
+					if (ozfFile.depths[k] != 0)
+					{
+						hint = ozfFile.depths[k];
+						break;
+					}
+				}
+				depth = getEncyptionDepth(tile, tilesize, ozfFile.key, hint);
+				ozfFile.depths[i] = depth;
+				probed = true;
+			}
+			image.encryption_depth = depth;
+			Log.d("OZF", "scale " + i + " encryption depth:\t" + depth);
+		}
+		image.loaded = true;
+		return probed;
+	}
+
+	/**
+	 * Reads encryption depths stored by previous file opening.
+	 *
+	 * @return depths of all scales (zero if not known) or null if they are not stored
+	 */
+	private static int[] readDepthCache(File file, int scales)
+	{
+		File cache = new File(file.getParentFile(), file.getName() + DEPTH_CACHE_EXTENSION);
+		if (! cache.exists())
+			return null;
+		try
+		{
+			BufferedReader reader = new BufferedReader(new FileReader(cache));
+			String[] fields;
+			try
+			{
+				String line = reader.readLine();
+				if (line == null)
+					return null;
+				fields = line.trim().split(" ");
+			}
+			finally
+			{
+				reader.close();
+			}
+			// file size, modification time and depths
+			if (fields.length != scales + 2)
+				return null;
+			if (Long.parseLong(fields[0]) != file.length() || Long.parseLong(fields[1]) != file.lastModified())
+				return null;
+			int[] depths = new int[scales];
+			for (int i = 0; i < scales; i++)
+				depths[i] = Integer.parseInt(fields[i + 2]);
+			return depths;
+		}
+		catch (IOException | NumberFormatException e)
+		{
+			Log.w("OZF", "failed to read encryption depth: " + e.getMessage());
+			return null;
 		}
 	}
 
+	private static void writeDepthCache(File file, int[] depths)
+	{
+		File cache = new File(file.getParentFile(), file.getName() + DEPTH_CACHE_EXTENSION);
+		StringBuilder sb = new StringBuilder();
+		sb.append(file.length()).append(' ').append(file.lastModified());
+		for (int depth : depths)
+			sb.append(' ').append(depth);
+		sb.append('\n');
+		try
+		{
+			FileWriter writer = new FileWriter(cache);
+			writer.write(sb.toString());
+			writer.close();
+		}
+		catch (IOException e)
+		{
+			// storage can be read-only, depth will be probed next time
+			Log.w("OZF", "failed to store encryption depth: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Converts BGRA palette to RGB565 colors.
+	 */
+	private static short[] getPalette565(byte[] palette)
+	{
+		short[] palette565 = new short[256];
+		for (int c = 0; c < 256; c++)
+		{
+			int r = palette[c*4 + 2] & 0xFF;
+			int g = palette[c*4 + 1] & 0xFF;
+			int b = palette[c*4 + 0] & 0xFF;
+			palette565[c] = (short) ((r & 0xF8) << 8 | (g & 0xFC) << 3 | b >> 3);
+		}
+		return palette565;
+	}
+
 	private static int calculateKey(RandomAccessFile reader) throws IOException
 	{
 		int key = 0;
@@ -563,33 +940,48 @@ public class OzfDecoder
 		return key;
 	}
 
-	private static int getEncyptionDepth(byte[] data, int size, int key)
+	/**
+	 * Finds how many leading bytes of tile data are encrypted by trying to inflate data decrypted to
+	 * different depths.
+	 *
+	 * @param hint probable depth, checked before others
+	 * @return encryption depth or -1 if whole tile is encrypted
+	 */
+	private static int getEncyptionDepth(byte[] data, int size, int key, int hint)
 	{
-		int nEncryptionDepth = -1;
-
+		DecodeContext ctx = decodeContext.get();
 		byte[] p = new byte[size];
-		int nDecompressed = OzfDecoder.OZF_TILE_WIDTH * OzfDecoder.OZF_TILE_HEIGHT;
-		
-		byte[] pDecompressed = new byte[nDecompressed];
+		byte[] pDecompressed = ctx.decompressed;
 
-		for (int i = 4; i <= size; i++)
+		if (hint >= 4 && hint < size)
 		{
 			System.arraycopy(data, 0, p, 0, size);
-			ozf_decode1(p, i, (byte) key);
-
-			nEncryptionDepth = i;
-			
-			if (decompressTile(pDecompressed, p))
-				break;
+			ozf_decode1(p, hint, (byte) key);
+			if (decompressTile(ctx.zip, pDecompressed, p))
+				return hint;
 		}
 
-		if (nEncryptionDepth == size)
-			nEncryptionDepth = -1;
+		System.arraycopy(data, 0, p, 0, size);
+		ozf_decode1(p, 3, (byte) key);
+
+		// there is no need to inflate data if zlib header is broken
+		if (!(p[0] == 0x78 && (p[1] & 0xFF) == 0xDA))
+			return -1;
+
+		for (int i = 4; i <= size; i++)
+		{
+			// decrypt one more byte instead of decrypting the whole buffer again
+			int j = i - 1;
+			p[j] ^= (byte) (d1_key[j % D1_KEY_CYCLE] + key);
 
-		return nEncryptionDepth;
+			if (decompressTile(ctx.zip, pDecompressed, p))
+				return i == size ? -1 : i;
+		}
+
+		return -1;
 	}
 
-	private static boolean decompressTile(byte[] dest, byte[] source)
+	private static boolean decompressTile(ZStream zip, byte[] dest, byte[] source)
 	{
 	    zip.next_in = source;
 	    zip.avail_in = source.length;
@@ -600,17 +992,51 @@ public class OzfDecoder
 
 	    zip.inflateInit();
 	    int err = zip.inflate(JZlib.Z_FINISH);
-	    if (err != JZlib.Z_OK && err != JZlib.Z_STREAM_END)
-	    {
-	    	return false;
-	    }
-//	    decompressed_size = (int) zip.total_out;
 	    zip.inflateEnd();
-	    return true;
+	    return err == JZlib.Z_OK || err == JZlib.Z_STREAM_END;
+	}
+
+	/**
+	 * Holds buffers used for tile decoding. Each decoding thread has its own context.
+	 */
+	static class DecodeContext
+	{
+		final ZStream zip = new ZStream();
+		final byte[] decompressed = new byte[OZF_TILE_WIDTH * OZF_TILE_HEIGHT];
+		final int[] pixels = new int[OZF_TILE_WIDTH * OZF_TILE_HEIGHT];
+		private ShortBuffer buffer565 = ShortBuffer.allocate(OZF_TILE_WIDTH * OZF_TILE_HEIGHT);
+		private byte[] input = new byte[8192];
+
+		/**
+		 * Returns compressed data buffer, it is grown if requested size exceeds current one.
+		 */
+		byte[] getInput(int size)
+		{
+			if (input.length < size)
+				input = new byte[size];
+			return input;
+		}
+
+		/**
+		 * Returns RGB565 output buffer limited to requested size, it is grown if needed.
+		 */
+		ShortBuffer getOutput(int size)
+		{
+			if (buffer565.capacity() < size)
+				buffer565 = ShortBuffer.allocate(size);
+			buffer565.clear();
+			buffer565.limit(size);
+			return buffer565;
+		}
 	}
 
 	public static void close(OzfFile file)
 	{
+		// mapped buffers are released by garbage collector
+		file.mapping = null;
+		if (file.tileCache != null)
+			file.tileCache.close();
+		file.tileCache = null;
 		try
 		{
 			file.reader.close();
@@ -22,21 +22,32 @@ package com.androzic.map.ozf;
 
 import java.io.File;
 import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
 
 public class OzfFile
 {
 	public static final int OZF_STREAM_DEFAULT = 0;
 	public static final int OZF_STREAM_ENCRYPTED = 1;
 	
+	File file;
 	RandomAccessFile reader;
+	MappedByteBuffer[] mapping;
+	OzfTileCache tileCache;
 	long fileptr;
 	int type;
 	int key;
 	long size;
 
 	int scales;
-	int[] scales_table;
+	/**
+	 * Offsets of scale headers in file
+	 */
+	long[] scales_table;
 	OzfImageHeader[] images;
+	/**
+	 * Encryption depth of each scale, zero if it is not detected yet
+	 */
+	int[] depths;
 	
 	Ozf2Header ozf2;
 	Ozf3Header ozf3;
@@ -53,6 +64,7 @@ public class OzfFile
 			ozf3 = new Ozf3Header();
 		}
 		size = file.length();
+		this.file = file;
 		this.reader = reader;
 	}
 
@@ -63,8 +75,17 @@ public class OzfFile
 		int xtiles;
 		int ytiles;
 
-		byte[] palette = new byte[1024];
+		/**
+		 * True if palette, tile table and encryption depth are read
+		 */
+		volatile boolean loaded;
+		byte[] palette;
+		short[] palette565;
 		int encryption_depth;
+		/**
+		 * Tile offsets in file, tile i occupies bytes from tiles[i] to tiles[i+1]
+		 */
+		int[] tiles;
 	}
 
 	public class Ozf2Header
@@ -122,4 +143,9 @@ public class OzfFile
 		if (ozf3 != null) return ozf3.height;
 		return 0;
 	}
+
+	public int scales()
+	{
+		return scales;
+	}
 }
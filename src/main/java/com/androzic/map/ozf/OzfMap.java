@@ -27,13 +27,16 @@ import java.util.List;
 
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.Rect;
+import android.graphics.RectF;
 
 import com.androzic.Log;
 import com.androzic.map.BaseMap;
 import com.androzic.map.MapPoint;
 import com.androzic.map.OnMapTileStateChangeListener;
+import com.androzic.map.Tile;
 import com.androzic.map.TileRAMCache;
 import com.androzic.ui.Viewport;
 import com.jhlabs.Point2D;
@@ -44,7 +47,7 @@ public class OzfMap extends BaseMap
 
 	private static final double[] zoomLevelsSupported =
 	{
-		// zoom must give integer if multiplied by 50 - it is used as a tile key
+		// zoom steps, any other zoom can be set as well
 		0.02,
 		0.06,
 		0.10,
@@ -62,6 +65,13 @@ public class OzfMap extends BaseMap
 		5.00
 	};
 
+	/**
+	 * Number of background tile decoding threads, if zero tiles are decoded while drawing
+	 */
+	public static int decodingThreads = Math.min(Runtime.getRuntime().availableProcessors(), 4);
+
+	private static final Paint filterPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
 	public String imagePath;
 	public String origDatum;
 	public int width;
@@ -73,6 +83,8 @@ public class OzfMap extends BaseMap
 	public ArrayList<MapPoint> calibrationPoints = new ArrayList<>();
 	private transient LinearBinding binding;
 	private transient OzfReader ozf;
+	private transient OzfTileController tileController;
+	private transient int[] lastMapXY;
 
 	protected OzfMap()
 	{
@@ -114,7 +126,10 @@ public class OzfMap extends BaseMap
 			}
 		}
 		Log.d("OZI", "Image file found: " + image.getCanonicalPath());
-		ozf = new OzfReader(image);
+		// only scales that are actually displayed are read
+		ozf = new OzfReader(image, true);
+		if (decodingThreads > 0)
+			tileController = new OzfTileController(ozf, listener, decodingThreads);
 		super.activate(listener, mpp, current);
 	}
 
@@ -122,6 +137,10 @@ public class OzfMap extends BaseMap
 	public synchronized void deactivate()
 	{
 		super.deactivate();
+		if (tileController != null)
+			tileController.interrupt();
+		tileController = null;
+		lastMapXY = null;
 		//TODO This shouldn't happen but happens
 		if (ozf != null)
 			ozf.close();
@@ -269,17 +288,8 @@ public class OzfMap extends BaseMap
 	@Override
 	public synchronized void recalculateCache()
 	{
-		if (cache != null)
-			cache.destroy();
-		int nx = (int) Math.ceil(viewportWidth * 1. / ozf.tile_dx()) + 2;
-		int ny = (int) Math.ceil(viewportHeight * 1. / ozf.tile_dy()) + 2;
-		if (nx > ozf.tiles_per_x())
-			nx = ozf.tiles_per_x();
-		if (ny > ozf.tiles_per_y())
-			ny = ozf.tiles_per_y();
-		int cacheSize = nx * ny;
-		Log.e("OZI", "Cache size: " + cacheSize);
-		cache = new TileRAMCache(cacheSize);
+		// tile keys include source scale, tiles are scaled to zoom when drawn
+		cache = new TileRAMCache(id, 0);
 		ozf.setCache(cache);
 	}
 
@@ -335,6 +345,9 @@ public class OzfMap extends BaseMap
 	{
 		Log.e("OZI", "[" + title + "] setZoom: " + z);
 		zoom = ozf.setZoom(z);
+		if (tileController != null)
+			tileController.reset();
+		lastMapXY = null;
 		recalculateCache();
 		bind();
 		mapClipPath.rewind();
@@ -369,9 +382,6 @@ public class OzfMap extends BaseMap
 			if (cropBorder)
 				c.clipPath(clipPath);
 			
-			int[] cr = ozf.map_xy_to_cr(map_xy);
-			int[] xy = ozf.map_xy_to_xy_on_tile(map_xy);
-			
 			int tile_w = ozf.tile_dx();
 			int tile_h = ozf.tile_dy();
 			
@@ -411,36 +421,56 @@ public class OzfMap extends BaseMap
 				result = false;
 			}
 			
-			int txb = viewport.canvasWidth / 2 - xy[0] - (cr[0] - c_min) * tile_w;
-			int tyb = viewport.canvasHeight / 2 - xy[1] - (cr[1] - r_min) * tile_h;
+			// tiles are positioned in source scale pixels and scaled to current zoom by canvas
+			float factor = (float) ozf.getFactor();
+			c.translate(viewport.canvasWidth / 2 - map_xy[0], viewport.canvasHeight / 2 - map_xy[1]);
+			c.scale(factor, factor);
+			// reduced tiles are smoothed, enlarged tiles keep sharp pixels
+			Paint paint = factor < 1f ? filterPaint : null;
+			Rect src = new Rect();
+			RectF dst = new RectF();
 
 			for (int i = r_min; i < r_max; i++)
 			{
 				for (int j = c_min; j < c_max; j++)
 				{
-					int tx = txb + (j - c_min) * tile_w;
-					int ty = tyb + (i - r_min) * tile_h;
-				
-					Bitmap tile = ozf.tile_get(j, i);
+					Tile tile = ozf.tile_acquire(j, i, tileController == null);
+					boolean substitute = false;
+					if (tile == null && tileController != null)
+					{
+						tileController.queueForDecoding(j, i, false);
+						// let underlying maps show through until tile is decoded
+						result = false;
+						// meanwhile draw the same tile decoded for another zoom if there is one
+						tile = ozf.tile_acquire_substitute(j, i);
+						substitute = true;
+					}
 					
 					if (tile != null)
 					{
-						int tile_dx = ozf.tile_dx(j, i);
-						int tile_dy = ozf.tile_dy(j, i);
-						if (tile_dx < tile_w || tile_dy < tile_h)
+						try
 						{
-							Rect src = new Rect(0, 0, tile_dx, tile_dy);
-							Rect dst = new Rect(tx, ty, tx + src.right, ty + src.bottom);
-							c.drawBitmap(tile, src, dst, null);
+							Bitmap bitmap = tile.bitmap;
+							int tx = j * OzfDecoder.OZF_TILE_WIDTH;
+							int ty = i * OzfDecoder.OZF_TILE_HEIGHT;
+							int tile_dx = ozf.source_tile_dx(j, i);
+							int tile_dy = ozf.source_tile_dy(j, i);
+							// decoded tile can be reduced, edge tiles are partially filled
+							src.set(0, 0, (bitmap.getWidth() * tile_dx + OzfDecoder.OZF_TILE_WIDTH - 1) / OzfDecoder.OZF_TILE_WIDTH,
+									(bitmap.getHeight() * tile_dy + OzfDecoder.OZF_TILE_HEIGHT - 1) / OzfDecoder.OZF_TILE_HEIGHT);
+							dst.set(tx, ty, tx + tile_dx, ty + tile_dy);
+							c.drawBitmap(bitmap, src, dst, substitute ? filterPaint : paint);
 						}
-						else
+						finally
 						{
-							c.drawBitmap(tile, tx, ty, null);
+							tile.release();
 						}
 					}
 				}
 			}
 			c.restore();
+			if (tileController != null)
+				prefetchTiles(map_xy, c_min, c_max, r_min, r_max);
 			if (drawBorder)
 				c.drawPath(clipPath, borderPaint);
 			if (result)
@@ -449,11 +479,46 @@ public class OzfMap extends BaseMap
 		}
 		catch (OutOfMemoryError err)
 		{
-			cache.clear();
+			ozf.clearCache();
 			throw err;
 		}
 	}
 
+	/**
+	 * Queues tiles just outside the viewport in the direction of map movement.
+	 */
+	private void prefetchTiles(int[] map_xy, int c_min, int c_max, int r_min, int r_max)
+	{
+		if (lastMapXY == null)
+		{
+			lastMapXY = new int[] {map_xy[0], map_xy[1]};
+			return;
+		}
+		int dx = Integer.signum(map_xy[0] - lastMapXY[0]);
+		int dy = Integer.signum(map_xy[1] - lastMapXY[1]);
+		lastMapXY[0] = map_xy[0];
+		lastMapXY[1] = map_xy[1];
+
+		int tx = ozf.tiles_per_x();
+		int ty = ozf.tiles_per_y();
+		if (dx != 0)
+		{
+			int col = dx > 0 ? c_max : c_min - 1;
+			if (col >= 0 && col < tx)
+				for (int i = Math.max(r_min - 1, 0); i <= Math.min(r_max, ty - 1); i++)
+					if (ozf.tile_cached(col, i) == null)
+						tileController.queueForDecoding(col, i, true);
+		}
+		if (dy != 0)
+		{
+			int row = dy > 0 ? r_max : r_min - 1;
+			if (row >= 0 && row < ty)
+				for (int j = Math.max(c_min - 1, 0); j <= Math.min(c_max, tx - 1); j++)
+					if (ozf.tile_cached(j, row) == null)
+						tileController.queueForDecoding(j, row, true);
+		}
+	}
+
 	@Override
 	public int getPriority()
 	{
@@ -798,6 +863,7 @@ public class OzfMap extends BaseMap
 			info.add("  label size: " + grGrid.labelSize);
 			info.add("  label everywhere: " + grGrid.labelShowEverywhere);
 		}
+		info.addAll(statistics());
 		
 		return info;
 	}
@@ -22,39 +22,105 @@ package com.androzic.map.ozf;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ShortBuffer;
 
+import android.content.ComponentCallbacks2;
 import android.graphics.Bitmap;
 
 import com.androzic.Log;
+import com.androzic.map.BitmapPool;
 import com.androzic.map.Tile;
 import com.androzic.map.TileRAMCache;
+import com.androzic.util.Metrics;
 
 public class OzfReader
 {
 	private double	zoom;
 	private int		source;
 	private double	factor;
-	private byte	zoomKey;
+	private int		reduction;
+	private byte	scaleKey;
 	private OzfFile ozf;
-	private TileRAMCache cache;
+	private volatile TileRAMCache cache;
+	/**
+	 * Maximum number of times tile can be halved when decoded
+	 */
+	private static final int MAX_REDUCTION = 6;
+	/**
+	 * Number of scale key bits holding reduction
+	 */
+	private static final int REDUCTION_BITS = 3;
+	/**
+	 * Maximum number of source scales that can be distinguished by scale key, the rest of
+	 * scales (the smallest ones) are not used
+	 */
+	private static final int MAX_SCALES = 1 << (8 - REDUCTION_BITS);
+	private static final Metrics.Histogram decodeTime = Metrics.histogram("ozf.decode");
 
 	public OzfReader(File file) throws IOException, OutOfMemoryError
 	{
-		ozf = OzfDecoder.open(file);
+		this(file, false);
+	}
+
+	/**
+	 * @param lazy if true, scale data is read when first tile of that scale is requested
+	 */
+	public OzfReader(File file, boolean lazy) throws IOException, OutOfMemoryError
+	{
+		ozf = OzfDecoder.open(file, lazy);
+		if (ozf.scales > MAX_SCALES)
+			Log.w("OZF", "image has " + ozf.scales + " scales, only " + MAX_SCALES + " are used");
 		setZoom(1.0);
 	}
 
-	public void setCache(TileRAMCache cache)
+	/**
+	 * Sets tile cache. Tile keys do not depend on zoom, so the same cache can be used for any zoom.
+	 */
+	public synchronized void setCache(TileRAMCache cache)
 	{
 		this.cache = cache;
 	}
 
+	/**
+	 * Frees memory after allocation failure, tiles that are currently visible are kept.
+	 */
+	public void clearCache()
+	{
+		TileRAMCache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
+	}
+
 	public double getZoom()
 	{
 		return zoom;
 	}
+
+	/**
+	 * Returns scale of map pixels relative to source scale pixels. Tiles are drawn scaled by this factor.
+	 */
+	public synchronized double getFactor()
+	{
+		return factor;
+	}
+
+	/**
+	 * Returns key part identifying source scale and reduction of decoded tiles. It changes only
+	 * when zoom crosses source scale or power of two boundary.
+	 */
+	synchronized byte getScaleKey()
+	{
+		return scaleKey;
+	}
 	
-	protected double setZoom(double zoom)
+	/**
+	 * Combines source scale and reduction in one byte, source scale should be less than
+	 * {@link #MAX_SCALES}.
+	 */
+	private static byte getScaleKey(int source, int reduction)
+	{
+		return (byte) (source << REDUCTION_BITS | reduction);
+	}
+
+	protected synchronized double setZoom(double zoom)
 	{
 		this.zoom = zoom;
 
@@ -63,7 +129,9 @@ public class OzfReader
 		double delta = Double.MAX_VALUE;
 		double ozf_zoom = 1;
 		
-		for (int i = 0; i < ozf.scales; i++)
+		// scale key can not hold more scales
+		int scales = Math.min(ozf.scales, MAX_SCALES);
+		for (int i = 0; i < scales; i++)
 		{
 			double a = OzfDecoder.scale_dy(ozf, i);
 		
@@ -90,9 +158,14 @@ public class OzfReader
 		
 		source = k;
 		factor = this.zoom / ozf_zoom;
-		zoomKey = (byte) (this.zoom * 50);
+		// tiles are decoded halved while they remain at least as large as displayed,
+		// the rest of scaling is done when tile is drawn
+		reduction = 0;
+		while (reduction < MAX_REDUCTION && factor * (2 << reduction) <= 1.0)
+			reduction++;
+		scaleKey = getScaleKey(source, reduction);
 
-		Log.d("OZF", String.format("zoom: %f, selected source scale: %f (%d), factor: %f", this.zoom, ozf_zoom, source, factor));
+		Log.d("OZF", String.format("zoom: %f, selected source scale: %f (%d), factor: %f, reduction: %d", this.zoom, ozf_zoom, source, factor, reduction));
 		
 		return this.zoom;
 	}
@@ -144,13 +217,24 @@ public class OzfReader
 	}
 	
 	public int tile_dx(int c, int r)
+	{
+		return (int) (source_tile_dx(c, r) * factor);
+	}
+
+	public int tile_dy(int c, int r)
+	{
+		return (int) (source_tile_dy(c, r) * factor);
+	}
+
+	/**
+	 * Returns tile width in source scale pixels, last column tiles can be narrower.
+	 */
+	public int source_tile_dx(int c, int r)
 	{
 		if (c > tiles_per_x() - 1 || r > tiles_per_y() - 1)
-		{
 			return 0;
-		}
 
-		double dx = OzfDecoder.OZF_TILE_WIDTH;
+		int dx = OzfDecoder.OZF_TILE_WIDTH;
 
 		if (c == tiles_per_x() - 1)
 		{
@@ -160,15 +244,18 @@ public class OzfReader
 				dx = OzfDecoder.OZF_TILE_WIDTH;
 		}
 		
-		return (int) (dx * factor);
+		return dx;
 	}
 
-	public int tile_dy(int c, int r)
+	/**
+	 * Returns tile height in source scale pixels, last row tiles can be lower.
+	 */
+	public int source_tile_dy(int c, int r)
 	{
 		if (c > tiles_per_x() - 1 || r > tiles_per_y() - 1)
 			return 0;
 
-		double dy = OzfDecoder.OZF_TILE_HEIGHT;
+		int dy = OzfDecoder.OZF_TILE_HEIGHT;
 		
 		if ( r == tiles_per_y() - 1)
 		{
@@ -178,7 +265,7 @@ public class OzfReader
 				dy = OzfDecoder.OZF_TILE_HEIGHT;
 		}
 		
-		return (int) (dy * factor);
+		return dy;
 	}
 
 	public int tiles_per_x()
@@ -191,7 +278,77 @@ public class OzfReader
 		return OzfDecoder.num_tiles_per_y(ozf, source);
 	}
 
-	public Bitmap tile_get(int c, int r) throws OutOfMemoryError
+	/**
+	 * Returns tile bitmap only if it is already decoded, does not decode tile.
+	 */
+	public Bitmap tile_cached(int c, int r)
+	{
+		TileRAMCache cache = this.cache;
+		if (cache == null)
+			return null;
+		Tile t = cache.peek(Tile.getKey(c, r, getScaleKey()));
+		return t != null ? t.bitmap : null;
+	}
+
+	/**
+	 * Returns tile marked as used so that its bitmap is not reused while tile is drawn.
+	 * Caller should release the tile after use. Cache access is counted, so this method
+	 * should be used only for drawing.
+	 *
+	 * @param decode if true, missing tile is decoded, otherwise only cached tile is returned
+	 */
+	public Tile tile_acquire(int c, int r, boolean decode) throws OutOfMemoryError
+	{
+		TileRAMCache cache = this.cache;
+		long key = Tile.getKey(c, r, getScaleKey());
+		Tile tile = cache != null ? cache.acquire(key) : null;
+		if (tile != null || !decode)
+			return tile;
+		return tile_decode(c, r);
+	}
+
+	/**
+	 * Returns cached tile of the same source scale decoded with different reduction. It covers
+	 * the same area and can be drawn scaled while the requested tile is being decoded. Caller
+	 * should release the tile after use.
+	 */
+	public Tile tile_acquire_substitute(int c, int r)
+	{
+		TileRAMCache cache = this.cache;
+		if (cache == null)
+			return null;
+		int source;
+		int reduction;
+		synchronized (this)
+		{
+			source = this.source;
+			reduction = this.reduction;
+		}
+		// nearest reductions first, coarser tiles are preferred as they remain after zooming in
+		for (int d = 1; d <= MAX_REDUCTION; d++)
+		{
+			if (reduction + d <= MAX_REDUCTION)
+			{
+				Tile tile = cache.acquire(Tile.getKey(c, r, getScaleKey(source, reduction + d)), false);
+				if (tile != null)
+					return tile;
+			}
+			if (reduction - d >= 0)
+			{
+				Tile tile = cache.acquire(Tile.getKey(c, r, getScaleKey(source, reduction - d)), false);
+				if (tile != null)
+					return tile;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns tile decoding it if it is not cached. Decoded tile is acquired before it is put in
+	 * cache, so its bitmap is not reused if tile is evicted before caller releases it. Cache
+	 * lookup is not counted in statistics, it is counted by the renderer.
+	 */
+	Tile tile_decode(int c, int r) throws OutOfMemoryError
 	{
 		if (c < 0 || c > tiles_per_x() - 1)
 			return null;
@@ -199,47 +356,56 @@ public class OzfReader
 		if (r < 0 || r > tiles_per_y() - 1)
 			return null;
 
-		long key = Tile.getKey(c, r, zoomKey);
-		Tile tile = new Tile(c, r, zoomKey);
-		Bitmap tileBitmap = null;
-		
-		if (cache != null)
+		// tiles can be decoded in background threads, get consistent zoom state
+		int source;
+		int reduction;
+		byte scaleKey;
+		TileRAMCache cache;
+		synchronized (this)
 		{
-			Tile t = cache.get(key);
-			if (t != null)
-				tileBitmap = t.bitmap;
+			source = this.source;
+			reduction = this.reduction;
+			scaleKey = this.scaleKey;
+			cache = this.cache;
 		}
-		if (tileBitmap == null)
+
+		long key = Tile.getKey(c, r, scaleKey);
+		Tile tile = cache != null ? cache.acquire(key, false) : null;
+		if (tile == null)
 		{
-	        int w = OzfDecoder.OZF_TILE_WIDTH;
-	        int h = OzfDecoder.OZF_TILE_HEIGHT;
-	        if (OzfDecoder.useNativeCalls && factor < 1.0)
+			Bitmap tileBitmap = null;
+			long start = Metrics.Histogram.start();
+			// tile is only reduced by power of two, it is scaled to zoom when drawn
+	        int w = OzfDecoder.OZF_TILE_WIDTH >> reduction;
+	        int h = OzfDecoder.OZF_TILE_HEIGHT >> reduction;
+			if (OzfDecoder.useNativeCalls)
 			{
-		        w = (int) (factor * w);
-		        h = (int) (factor * h);
+				int[] data = OzfDecoder.getTile(ozf, source, c, r, w, h);
+				if (data != null)
+				{
+					tileBitmap = BitmapPool.obtain(w, h, Bitmap.Config.RGB_565);
+					tileBitmap.setPixels(data, 0, w, 0, 0, w, h);
+				}
 			}
-			int[] data = OzfDecoder.getTile(ozf, source, c, r, w, h);
-			if (data != null)
+			else
 			{
-				tileBitmap = Bitmap.createBitmap(w, h, Bitmap.Config.RGB_565);
-				tileBitmap.setPixels(data, 0, w, 0, 0, w, h);
+				ShortBuffer data = OzfDecoder.getTileRGB565(ozf, source, c, r, w, h, reduction > 0);
+				if (data != null)
+				{
+					tileBitmap = BitmapPool.obtain(w, h, Bitmap.Config.RGB_565);
+					tileBitmap.copyPixelsFromBuffer(data);
+				}
 			}
 			if (tileBitmap == null)
 				return null;
-			if (factor > 1.0 || (!OzfDecoder.useNativeCalls && factor < 1.0))
-			{
-		        int sw = (int) (factor * OzfDecoder.OZF_TILE_WIDTH);
-		        int sh = (int) (factor * OzfDecoder.OZF_TILE_HEIGHT);
-		        Bitmap scaled = Bitmap.createScaledBitmap(tileBitmap, sw, sh, false);
-		        tileBitmap = scaled;
-			}
-			if (cache != null && tileBitmap != null)
-			{
-				tile.bitmap = tileBitmap;
-				cache.put(tile.getKey(), tile);
-			}
+			decodeTime.stop(start);
+			tile = new Tile(c, r, scaleKey);
+			tile.bitmap = tileBitmap;
+			tile.acquire();
+			if (cache != null)
+				cache.put(key, tile);
 		}
 		
-		return tileBitmap;
+		return tile;
 	}
 }
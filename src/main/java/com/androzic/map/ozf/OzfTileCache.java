@@ -0,0 +1,317 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map.ozf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+import com.androzic.Log;
+
+/**
+ * Persistent cache of decrypted and inflated OZF tiles. Tiles are stored as palette indexes
+ * (one byte per pixel) in a single append-only file located next to the image file. Tile data
+ * is run-length encoded when it makes it smaller.
+ */
+public class OzfTileCache
+{
+	public static final String EXTENSION = ".tilecache";
+
+	private static final int MAGIC = 0x4F5A5443; // OZTC
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+	private static final int RECORD_HEADER_SIZE = 4 + 4 + 2;
+	private static final int FLAG_RLE = 1;
+	private static final int LOAD_BUFFER_SIZE = 64 * 1024;
+	/**
+	 * Size of tile palette indexes, longer records are invalid
+	 */
+	private static final int TILE_SIZE = OzfDecoder.OZF_TILE_WIDTH * OzfDecoder.OZF_TILE_HEIGHT;
+
+	private final RandomAccessFile file;
+	/**
+	 * Tile key to record position (upper bits) and data length (lower 16 bits)
+	 */
+	private final HashMap<Long, Long> index = new HashMap<>();
+	/**
+	 * Record buffer: header followed by tile data
+	 */
+	private final byte[] buffer = new byte[RECORD_HEADER_SIZE + OzfDecoder.OZF_TILE_WIDTH * OzfDecoder.OZF_TILE_HEIGHT * 2];
+	private long end;
+
+	private OzfTileCache(RandomAccessFile file)
+	{
+		this.file = file;
+	}
+
+	/**
+	 * Opens tile cache for the image file creating it if necessary.
+	 *
+	 * @return tile cache or null if cache can not be opened (e.g. image is located on read-only storage)
+	 */
+	public static OzfTileCache open(File image)
+	{
+		File cacheFile = new File(image.getParentFile(), image.getName() + EXTENSION);
+		try
+		{
+			OzfTileCache cache = new OzfTileCache(new RandomAccessFile(cacheFile, "rw"));
+			cache.load(image.length(), image.lastModified());
+			Log.d("OZF", "tile cache: " + cache.index.size() + " tiles");
+			return cache;
+		}
+		catch (IOException e)
+		{
+			Log.w("OZF", "tile cache is not available: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Reads cache index, invalidates cache if it belongs to different image or is corrupted.
+	 * File is read sequentially in large chunks and record headers are parsed from memory.
+	 */
+	private void load(long size, long modified) throws IOException
+	{
+		long length = file.length();
+		ByteBuffer chunk = ByteBuffer.allocate(LOAD_BUFFER_SIZE);
+		long chunkStart = 0;
+		int chunkLength = (int) Math.min(LOAD_BUFFER_SIZE, length);
+		file.seek(0);
+		file.readFully(chunk.array(), 0, chunkLength);
+
+		if (length >= HEADER_SIZE && chunk.getInt(0) == MAGIC && chunk.getInt(4) == VERSION
+				&& chunk.getLong(8) == size && chunk.getLong(16) == modified)
+		{
+			long position = HEADER_SIZE;
+			while (position + RECORD_HEADER_SIZE <= length)
+			{
+				if (position + RECORD_HEADER_SIZE > chunkStart + chunkLength)
+				{
+					chunkStart = position;
+					chunkLength = (int) Math.min(LOAD_BUFFER_SIZE, length - position);
+					file.seek(chunkStart);
+					file.readFully(chunk.array(), 0, chunkLength);
+				}
+				int p = (int) (position - chunkStart);
+				int scale = chunk.getInt(p);
+				int i = chunk.getInt(p + 4);
+				int len = chunk.getShort(p + 8) & 0x7FFF;
+				if (len > TILE_SIZE)
+				{
+					Log.w("OZF", "tile cache is corrupted, resetting");
+					reset(chunk, size, modified);
+					return;
+				}
+				if (position + RECORD_HEADER_SIZE + len > length)
+					break;
+				index.put(getKey(scale, i), position << 16 | len);
+				position += RECORD_HEADER_SIZE + len;
+			}
+			// drop incomplete record
+			if (position < length)
+				file.setLength(position);
+			end = position;
+		}
+		else
+		{
+			reset(chunk, size, modified);
+		}
+	}
+
+	/**
+	 * Empties cache file and writes new header to it.
+	 */
+	private void reset(ByteBuffer chunk, long size, long modified) throws IOException
+	{
+		index.clear();
+		chunk.clear();
+		chunk.putInt(MAGIC);
+		chunk.putInt(VERSION);
+		chunk.putLong(size);
+		chunk.putLong(modified);
+		file.setLength(0);
+		file.seek(0);
+		file.write(chunk.array(), 0, HEADER_SIZE);
+		end = HEADER_SIZE;
+	}
+
+	/**
+	 * Reads tile palette indexes.
+	 *
+	 * @param dest buffer of tile size
+	 * @return true if tile was found in cache, false if it is missing or its record is invalid
+	 */
+	public synchronized boolean read(int scale, int i, byte[] dest)
+	{
+		Long entry = index.get(getKey(scale, i));
+		if (entry == null)
+			return false;
+		long position = entry >>> 16;
+		int len = (int) (entry & 0xFFFF);
+		if (len > TILE_SIZE)
+			return false;
+		try
+		{
+			file.seek(position);
+			file.readFully(buffer, 0, RECORD_HEADER_SIZE + len);
+			int flags = (buffer[8] & 0xFF) >>> 7;
+			if ((flags & FLAG_RLE) != 0)
+				return unpack(buffer, RECORD_HEADER_SIZE, len, dest) == dest.length;
+			if (len != dest.length)
+				return false;
+			System.arraycopy(buffer, RECORD_HEADER_SIZE, dest, 0, len);
+			return true;
+		}
+		catch (IOException e)
+		{
+			Log.e("OZF", "tile cache read error: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Appends tile palette indexes to cache.
+	 */
+	public synchronized void write(int scale, int i, byte[] data)
+	{
+		long key = getKey(scale, i);
+		if (index.containsKey(key))
+			return;
+		try
+		{
+			int len = pack(data, buffer, RECORD_HEADER_SIZE);
+			int flags = FLAG_RLE;
+			if (len < 0)
+			{
+				len = data.length;
+				flags = 0;
+				System.arraycopy(data, 0, buffer, RECORD_HEADER_SIZE, len);
+			}
+			ByteBuffer header = ByteBuffer.wrap(buffer);
+			header.putInt(scale);
+			header.putInt(i);
+			header.putShort((short) (flags << 15 | len));
+			// header and data are written at once
+			file.seek(end);
+			file.write(buffer, 0, RECORD_HEADER_SIZE + len);
+			index.put(key, end << 16 | len);
+			end += RECORD_HEADER_SIZE + len;
+		}
+		catch (IOException e)
+		{
+			Log.e("OZF", "tile cache write error: " + e.getMessage());
+		}
+	}
+
+	public synchronized void close()
+	{
+		try
+		{
+			file.close();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	private static long getKey(int scale, int i)
+	{
+		return (long) scale << 32 | i & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * Run-length encodes data (PackBits).
+	 *
+	 * @param off position in destination buffer
+	 * @return encoded length or -1 if encoded data is not smaller than source
+	 */
+	private static int pack(byte[] src, byte[] dst, int off)
+	{
+		int n = src.length;
+		int limit = off + n - 1;
+		int i = 0, o = off;
+		while (i < n)
+		{
+			int run = 1;
+			while (i + run < n && run < 128 && src[i + run] == src[i])
+				run++;
+			if (run > 1)
+			{
+				if (o + 2 > limit)
+					return -1;
+				dst[o++] = (byte) (1 - run);
+				dst[o++] = src[i];
+				i += run;
+				continue;
+			}
+			int start = i;
+			while (i < n && i - start < 128 && (i + 1 >= n || src[i + 1] != src[i]))
+				i++;
+			if (i == start)
+				i++;
+			int count = i - start;
+			if (o + 1 + count > limit)
+				return -1;
+			dst[o++] = (byte) (count - 1);
+			System.arraycopy(src, start, dst, o, count);
+			o += count;
+		}
+		return o - off;
+	}
+
+	/**
+	 * Decodes run-length encoded data.
+	 *
+	 * @param off position of encoded data in source buffer
+	 * @return decoded length or -1 if data is malformed
+	 */
+	private static int unpack(byte[] src, int off, int len, byte[] dst)
+	{
+		int i = off, o = 0;
+		int limit = off + len;
+		while (i < limit && o < dst.length)
+		{
+			int c = src[i++];
+			if (c >= 0)
+			{
+				if (i + c + 1 > limit)
+					return -1;
+				int count = Math.min(c + 1, dst.length - o);
+				System.arraycopy(src, i, dst, o, count);
+				i += c + 1;
+				o += count;
+			}
+			else if (c != -128)
+			{
+				if (i >= limit)
+					return -1;
+				int count = Math.min(1 - c, dst.length - o);
+				byte b = src[i++];
+				for (int k = 0; k < count; k++)
+					dst[o++] = b;
+			}
+		}
+		return o;
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map.ozf;
+
+import java.util.LinkedList;
+
+import com.androzic.map.OnMapTileStateChangeListener;
+import com.androzic.map.Tile;
+import com.androzic.util.LongHashMap;
+
+/**
+ * Decodes OZF tiles in background threads. Tiles visible on screen are decoded first,
+ * prefetched tiles are decoded only when there are no visible tiles pending.
+ */
+public class OzfTileController implements Runnable
+{
+	final LinkedList<Tile> pendingList = new LinkedList<>();
+	final LinkedList<Tile> prefetchList = new LinkedList<>();
+	/**
+	 * Queued tiles, guarded by this
+	 */
+	final LongHashMap<Tile> tileMap = new LongHashMap<>();
+	private final Thread[] threads;
+	private final OzfReader reader;
+	private final OnMapTileStateChangeListener listener;
+
+	public OzfTileController(OzfReader reader, OnMapTileStateChangeListener listener, int threads)
+	{
+		this.reader = reader;
+		this.listener = listener;
+		this.threads = new Thread[threads];
+		for (int i = 0; i < this.threads.length; i++)
+		{
+			this.threads[i] = new Thread(this, "OzfDecoder-" + i);
+			this.threads[i].setPriority(Thread.MIN_PRIORITY);
+			this.threads[i].start();
+		}
+	}
+
+	public void run()
+	{
+		while (!Thread.currentThread().isInterrupted())
+		{
+			try
+			{
+				Tile t;
+				synchronized (this)
+				{
+					t = pendingList.poll();
+					if (t == null)
+						t = prefetchList.poll();
+					if (t == null)
+					{
+						wait();
+						continue;
+					}
+				}
+				try
+				{
+					// source scale has changed since tile was requested
+					if (t.zoomLevel != reader.getScaleKey())
+						continue;
+					Tile tile = reader.tile_decode(t.x, t.y);
+					if (tile != null)
+					{
+						tile.release();
+						if (listener != null)
+							listener.onTileObtained();
+					}
+				}
+				finally
+				{
+					// failed tile can be requested again
+					dequeue(t);
+				}
+			}
+			catch (InterruptedException e)
+			{
+				break;
+			}
+			catch (OutOfMemoryError e)
+			{
+				reader.clearCache();
+			}
+			catch (Exception e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private synchronized void dequeue(Tile tile)
+	{
+		if (tileMap.get(tile.getKey()) == tile)
+			tileMap.remove(tile.getKey());
+	}
+
+	/**
+	 * Interrupts all the Threads
+	 */
+	public void interrupt()
+	{
+		for (Thread thread : threads)
+			thread.interrupt();
+	}
+
+	/**
+	 * Queues tile for decoding if it is not already queued.
+	 *
+	 * @param c tile column
+	 * @param r tile row
+	 * @param prefetch true if tile is not visible and should be decoded only when nothing else is pending
+	 */
+	public synchronized void queueForDecoding(int c, int r, boolean prefetch)
+	{
+		byte scaleKey = reader.getScaleKey();
+		long key = Tile.getKey(c, r, scaleKey);
+		Tile tile = tileMap.get(key);
+		if (tile != null)
+		{
+			// promote prefetched tile that became visible
+			if (!prefetch && prefetchList.remove(tile))
+				pendingList.add(tile);
+			return;
+		}
+		tile = new Tile(c, r, scaleKey);
+		tileMap.put(key, tile);
+		if (prefetch)
+			prefetchList.add(tile);
+		else
+			pendingList.add(tile);
+		notifyAll();
+	}
+
+	/**
+	 * Reset tile decoding queue
+	 */
+	public synchronized void reset()
+	{
+		tileMap.clear();
+		pendingList.clear();
+		prefetchList.clear();
+	}
+}
@@ -24,13 +24,14 @@ import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Matrix;
 
 import com.androzic.Log;
+import com.androzic.map.BitmapPool;
 import com.androzic.map.OnMapTileStateChangeListener;
 import com.androzic.map.Tile;
 import com.androzic.map.TileMap;
+import com.androzic.map.TileRAMCache;
 
 import java.io.File;
 import java.util.ArrayList;
@@ -146,37 +147,28 @@ public class SQLiteMap extends TileMap
 	}
 
 	@Override
-	public Bitmap getTile(int x, int y) throws OutOfMemoryError
+	protected Tile acquireTile(int x, int y) throws OutOfMemoryError
 	{
-		try
+		TileRAMCache cache = this.cache;
+		if (cache == null)
+			return null;
+		long key = Tile.getKey(x, y, srcZoom);
+		Tile tile = cache.acquire(key);
+		if (tile == null)
 		{
-			long key = Tile.getKey(x, y, srcZoom);
-			Tile tile = cache.get(key);
-			if (tile == null)
+			tile = new Tile(x, y, srcZoom);
+			loadTile(tile);
+			if (tile.bitmap == null)
 			{
-				tile = new Tile(x, y, srcZoom);
-				loadTile(tile);
-				if (tile.bitmap == null)
-				{
-					generateTile(tile);
-				}
-				if (tile.bitmap != null)
-				{
-					if (dynZoom != 1.0)
-					{
-				        int ss = (int) (dynZoom * tileSize);
-						tile.bitmap = Bitmap.createScaledBitmap(tile.bitmap, ss, ss, true);
-					}
-					cache.put(tile.getKey(), tile);
-				}
+				generateTile(cache, tile);
 			}
-			return tile.bitmap;
-		}
-		catch (NullPointerException e)
-		{
-			//TODO Strange situation when cache becomes null in the middle of the method
-			return null;
+			if (tile.bitmap == null)
+				return null;
+			// acquired before it is cached, so it is not pooled if evicted while being drawn
+			tile.acquire();
+			cache.put(key, tile);
 		}
+		return tile;
 	}
 
 	@Override
@@ -195,6 +187,7 @@ public class SQLiteMap extends TileMap
 		}
 		info.add("datum: " + datum);
 		info.add("scale (mpp): " + mpp);
+		info.addAll(statistics());
 	
 		return info;
 	}
@@ -248,10 +241,21 @@ public class SQLiteMap extends TileMap
 	{
 		byte[] data = loadTile(t.x, t.y, t.zoomLevel);
 		if (data != null)
-			t.bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
+			t.bitmap = BitmapPool.decodeByteArray(data, 0, data.length);
 	}
 
 	public void generateTile(Tile t)
+	{
+		generateTile(cache, t);
+	}
+
+	/**
+	 * Generates tile from cached or stored parent tile.
+	 *
+	 * @param cache
+	 *            cache to look parent tiles up in, can be null if map has been deactivated
+	 */
+	private void generateTile(TileRAMCache cache, Tile t)
 	{
 		byte parentTileZoom = (byte) (t.zoomLevel - 1);
 		int parentTileX = t.x / 2, parentTileY = t.y / 2, scale = 2;
@@ -259,31 +263,44 @@ public class SQLiteMap extends TileMap
 		// Search for parent tile
 		for (; parentTileZoom >= 0; parentTileZoom--, parentTileX /= 2, parentTileY /= 2, scale *= 2)
 		{
-			Tile parentTile = new Tile(parentTileX, parentTileY, parentTileZoom);
-
-			if (cache.containsKey(parentTile.getKey()))
-				parentTile = cache.get(parentTile.getKey());
-			else
+			boolean cached = true;
+			Tile parentTile = cache != null ? cache.acquire(Tile.getKey(parentTileX, parentTileY, parentTileZoom), false) : null;
+			if (parentTile == null)
+			{
+				cached = false;
+				parentTile = new Tile(parentTileX, parentTileY, parentTileZoom);
 				loadTile(parentTile);
+			}
 
-			if (parentTile.bitmap != null && scale <= parentTile.bitmap.getWidth() && scale <= parentTile.bitmap.getHeight())
+			try
+			{
+				if (parentTile.bitmap != null && scale <= parentTile.bitmap.getWidth() && scale <= parentTile.bitmap.getHeight())
+				{
+					Matrix matrix = new Matrix();
+					matrix.postScale(scale, scale);
+
+					int miniTileWidth = parentTile.bitmap.getWidth() / scale;
+					int miniTileHeight = parentTile.bitmap.getHeight() / scale;
+					int fromX = (t.x % scale) * miniTileWidth;
+					int fromY = (t.y % scale) * miniTileHeight;
+
+					// Create mini bitmap which will be stretched to tile
+					Bitmap miniTileBitmap = Bitmap.createBitmap(parentTile.bitmap, fromX, fromY, miniTileWidth, miniTileHeight);
+
+					// Create tile bitmap from mini bitmap
+					t.bitmap = Bitmap.createBitmap(miniTileBitmap, 0, 0, miniTileWidth, miniTileHeight, matrix, false);
+					t.generated = true;
+					miniTileBitmap.recycle();
+					break;
+				}
+			}
+			finally
 			{
-				Matrix matrix = new Matrix();
-				matrix.postScale(scale, scale);
-
-				int miniTileWidth = parentTile.bitmap.getWidth() / scale;
-				int miniTileHeight = parentTile.bitmap.getHeight() / scale;
-				int fromX = (t.x % scale) * miniTileWidth;
-				int fromY = (t.y % scale) * miniTileHeight;
-
-				// Create mini bitmap which will be stretched to tile
-				Bitmap miniTileBitmap = Bitmap.createBitmap(parentTile.bitmap, fromX, fromY, miniTileWidth, miniTileHeight);
-
-				// Create tile bitmap from mini bitmap
-				t.bitmap = Bitmap.createBitmap(miniTileBitmap, 0, 0, miniTileWidth, miniTileHeight, matrix, false);
-				t.generated = true;
-				miniTileBitmap.recycle();
-				break;
+				// parent tile bitmap is not needed anymore if it was not cached
+				if (cached)
+					parentTile.release();
+				else
+					BitmapPool.release(parentTile.bitmap);
 			}
 		}
 	}
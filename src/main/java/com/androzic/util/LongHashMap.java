@@ -0,0 +1,226 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.util;
+
+/**
+ * Hash map with primitive long keys based on open addressing with linear probing. It does not
+ * box keys and does not allocate objects per entry. Null values are not permitted.
+ * <p>
+ * The map is not synchronized. Modifications should be serialized by caller. {@link #get(long)}
+ * may run concurrently with a modification, in that case it never fails but can miss existing
+ * entry or return a value of a different key, so caller should verify the result.
+ */
+public class LongHashMap<V>
+{
+	private static final int MIN_CAPACITY = 16;
+
+	private volatile Table table;
+	private int size;
+
+	public LongHashMap()
+	{
+		this(MIN_CAPACITY);
+	}
+
+	/**
+	 * @param capacity
+	 *            expected number of entries
+	 */
+	public LongHashMap(int capacity)
+	{
+		int length = MIN_CAPACITY;
+		while (length < capacity * 2)
+			length <<= 1;
+		table = new Table(length);
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	public boolean containsKey(long key)
+	{
+		return get(key) != null;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(long key)
+	{
+		Table t = table;
+		int mask = t.keys.length - 1;
+		int i = hash(key) & mask;
+		// probe count is limited in case table is being modified concurrently
+		for (int n = 0; n <= mask; n++)
+		{
+			Object value = t.values[i];
+			if (value == null)
+				return null;
+			if (t.keys[i] == key)
+				return (V) value;
+			i = (i + 1) & mask;
+		}
+		return null;
+	}
+
+	/**
+	 * @return previous value associated with the key or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value)
+	{
+		if (value == null)
+			throw new NullPointerException();
+		Table t = table;
+		int mask = t.keys.length - 1;
+		int i = hash(key) & mask;
+		while (t.values[i] != null)
+		{
+			if (t.keys[i] == key)
+			{
+				Object old = t.values[i];
+				t.values[i] = value;
+				return (V) old;
+			}
+			i = (i + 1) & mask;
+		}
+		t.keys[i] = key;
+		t.values[i] = value;
+		size++;
+		if (size * 2 > t.keys.length)
+			resize(t.keys.length << 1);
+		return null;
+	}
+
+	/**
+	 * @return removed value or null if there was no such key
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long key)
+	{
+		Table t = table;
+		int mask = t.keys.length - 1;
+		int i = hash(key) & mask;
+		while (t.values[i] != null)
+		{
+			if (t.keys[i] == key)
+			{
+				Object old = t.values[i];
+				shift(t, i);
+				size--;
+				return (V) old;
+			}
+			i = (i + 1) & mask;
+		}
+		return null;
+	}
+
+	public void clear()
+	{
+		if (size == 0)
+			return;
+		table = new Table(table.keys.length);
+		size = 0;
+	}
+
+	/**
+	 * Returns keys of all entries.
+	 */
+	public long[] keys()
+	{
+		Table t = table;
+		long[] keys = new long[size];
+		int k = 0;
+		for (int i = 0; i < t.keys.length && k < keys.length; i++)
+		{
+			if (t.values[i] != null)
+				keys[k++] = t.keys[i];
+		}
+		return keys;
+	}
+
+	/**
+	 * Removes entry at position i moving following entries of the same probe sequence back so that
+	 * lookups do not need deletion marks.
+	 */
+	private static void shift(Table t, int i)
+	{
+		int mask = t.keys.length - 1;
+		int j = i;
+		while (true)
+		{
+			j = (j + 1) & mask;
+			if (t.values[j] == null)
+				break;
+			int home = hash(t.keys[j]) & mask;
+			// entry at j can be moved to i only if its home position is not in (i, j]
+			if (i <= j ? (i < home && home <= j) : (i < home || home <= j))
+				continue;
+			t.keys[i] = t.keys[j];
+			t.values[i] = t.values[j];
+			i = j;
+		}
+		t.values[i] = null;
+	}
+
+	private void resize(int length)
+	{
+		Table old = table;
+		Table t = new Table(length);
+		int mask = length - 1;
+		for (int i = 0; i < old.keys.length; i++)
+		{
+			Object value = old.values[i];
+			if (value == null)
+				continue;
+			long key = old.keys[i];
+			int j = hash(key) & mask;
+			while (t.values[j] != null)
+				j = (j + 1) & mask;
+			t.keys[j] = key;
+			t.values[j] = value;
+		}
+		table = t;
+	}
+
+	private static int hash(long key)
+	{
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private static class Table
+	{
+		final long[] keys;
+		final Object[] values;
+
+		Table(int length)
+		{
+			keys = new long[length];
+			values = new Object[length];
+		}
+	}
+}
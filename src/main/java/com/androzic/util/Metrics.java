@@ -0,0 +1,226 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide registry of performance counters and latency histograms. Metrics are updated
+ * without locking, so they can be used on hot paths. Metric objects should be obtained once
+ * and kept in static fields.
+ */
+public class Metrics
+{
+	private static final ConcurrentHashMap<String, Object> registry = new ConcurrentHashMap<>();
+
+	/**
+	 * Returns counter with the given name creating it if necessary.
+	 */
+	public static Counter counter(String name)
+	{
+		Object metric = registry.get(name);
+		if (metric == null)
+		{
+			registry.putIfAbsent(name, new Counter());
+			metric = registry.get(name);
+		}
+		return (Counter) metric;
+	}
+
+	/**
+	 * Returns latency histogram with the given name creating it if necessary.
+	 */
+	public static Histogram histogram(String name)
+	{
+		Object metric = registry.get(name);
+		if (metric == null)
+		{
+			registry.putIfAbsent(name, new Histogram());
+			metric = registry.get(name);
+		}
+		return (Histogram) metric;
+	}
+
+	/**
+	 * Returns human readable values of all metrics sorted by name.
+	 */
+	public static List<String> snapshot()
+	{
+		TreeMap<String, Object> metrics = new TreeMap<>(registry);
+		List<String> lines = new ArrayList<>(metrics.size());
+		for (Map.Entry<String, Object> entry : metrics.entrySet())
+			lines.add(entry.getKey() + ": " + entry.getValue());
+		return lines;
+	}
+
+	/**
+	 * Resets all metrics.
+	 */
+	public static void reset()
+	{
+		for (Object metric : registry.values())
+		{
+			if (metric instanceof Counter)
+				((Counter) metric).reset();
+			else
+				((Histogram) metric).reset();
+		}
+	}
+
+	public static class Counter
+	{
+		private final AtomicLong value = new AtomicLong();
+
+		public void inc()
+		{
+			value.incrementAndGet();
+		}
+
+		public void add(long delta)
+		{
+			value.addAndGet(delta);
+		}
+
+		public long get()
+		{
+			return value.get();
+		}
+
+		public void reset()
+		{
+			value.set(0);
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.valueOf(value.get());
+		}
+	}
+
+	/**
+	 * Histogram of durations in microseconds with power of two buckets.
+	 */
+	public static class Histogram
+	{
+		private static final int BUCKETS = 40;
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sum = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+
+		/**
+		 * Returns start time of measured operation.
+		 */
+		public static long start()
+		{
+			return System.nanoTime();
+		}
+
+		/**
+		 * Records duration of operation started at the given time.
+		 *
+		 * @param start value returned by {@link #start()}
+		 */
+		public void stop(long start)
+		{
+			record((System.nanoTime() - start) / 1000);
+		}
+
+		/**
+		 * Records duration in microseconds.
+		 */
+		public void record(long micros)
+		{
+			if (micros < 0)
+				micros = 0;
+			int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+			buckets.incrementAndGet(bucket);
+			count.incrementAndGet();
+			sum.addAndGet(micros);
+			long m = max.get();
+			while (micros > m && !max.compareAndSet(m, micros))
+				m = max.get();
+		}
+
+		public long getCount()
+		{
+			return count.get();
+		}
+
+		/**
+		 * Returns mean duration in microseconds.
+		 */
+		public long getMean()
+		{
+			long n = count.get();
+			return n > 0 ? sum.get() / n : 0;
+		}
+
+		public long getMax()
+		{
+			return max.get();
+		}
+
+		/**
+		 * Returns upper bound of the bucket containing given percentile, in microseconds.
+		 *
+		 * @param percentile value between 0 and 1
+		 */
+		public long getPercentile(double percentile)
+		{
+			long n = 0;
+			for (int i = 0; i < BUCKETS; i++)
+				n += buckets.get(i);
+			long target = (long) Math.ceil(n * percentile);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++)
+			{
+				seen += buckets.get(i);
+				if (seen >= target && seen > 0)
+					return i == 0 ? 0 : 1L << i;
+			}
+			return 0;
+		}
+
+		public void reset()
+		{
+			for (int i = 0; i < BUCKETS; i++)
+				buckets.set(i, 0);
+			count.set(0);
+			sum.set(0);
+			max.set(0);
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format("n=%d mean=%dus p50<%dus p95<%dus max=%dus", getCount(), getMean(), getPercentile(0.5), getPercentile(0.95), getMax());
+		}
+	}
+}
@@ -0,0 +1,394 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.objenesis.ObjenesisStd;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+
+public class TileRAMCacheTest
+{
+	private static final ObjenesisStd objenesis = new ObjenesisStd();
+	/**
+	 * Size of tile bitmap used in memory budget tests
+	 */
+	private static final int TILE_BYTES = 1000;
+
+	private TileRAMCache cache;
+	private long maxBytes;
+	private EvictionPolicy policy;
+
+	@Before
+	public void setUp()
+	{
+		maxBytes = TileRAMCache.getMaxBytes();
+		policy = TileRAMCache.getEvictionPolicy();
+		TileRAMCache.clearAll();
+		cache = new TileRAMCache(-1, 0);
+	}
+
+	@After
+	public void tearDown()
+	{
+		cache.clear();
+		cache.destroy();
+		TileRAMCache.setMaxBytes(maxBytes);
+		TileRAMCache.setEvictionPolicy(policy);
+	}
+
+	private static Tile newTile(int x, int y)
+	{
+		Tile tile = new Tile(x, y, (byte) 0);
+		// bitmaps are not functional in unit tests, instance is created without constructor
+		tile.bitmap = objenesis.newInstance(Bitmap.class);
+		return tile;
+	}
+
+	/**
+	 * Creates tile that occupies given amount of memory.
+	 */
+	private static Tile newTile(int x, int y, final int bytes)
+	{
+		Tile tile = new Tile(x, y, (byte) 0)
+		{
+			@Override
+			int getByteCount()
+			{
+				return bytes;
+			}
+		};
+		tile.bitmap = objenesis.newInstance(Bitmap.class);
+		return tile;
+	}
+
+	private Tile put(int x, int y, boolean generated, boolean expired)
+	{
+		Tile tile = newTile(x, y, TILE_BYTES);
+		tile.generated = generated;
+		tile.expired = expired;
+		cache.put(tile.getKey(), tile);
+		return tile;
+	}
+
+	private boolean isCached(Tile tile)
+	{
+		return cache.peek(tile.getKey()) == tile;
+	}
+
+	@Test
+	public void testAcquiredTileSurvivesEviction()
+	{
+		Tile tile = newTile(1, 1);
+		Bitmap bitmap = tile.bitmap;
+		tile.acquire();
+		cache.put(tile.getKey(), tile);
+		assertSame(tile, cache.get(tile.getKey()));
+
+		cache.clear();
+		assertNull(cache.get(tile.getKey()));
+		// bitmap is kept until drawing is finished
+		assertSame(bitmap, tile.bitmap);
+		tile.release();
+		assertNull(tile.bitmap);
+	}
+
+	@Test
+	public void testAcquire()
+	{
+		Tile tile = newTile(2, 2);
+		cache.put(tile.getKey(), tile);
+		Tile acquired = cache.acquire(tile.getKey());
+		assertNotNull(acquired);
+		cache.clear();
+		assertNotNull(acquired.bitmap);
+		acquired.release();
+		assertNull(acquired.bitmap);
+	}
+
+	@Test
+	public void testPeekIsNotCounted()
+	{
+		Tile tile = newTile(3, 3);
+		long key = tile.getKey();
+		cache.put(key, tile);
+		tile.referenced = false;
+		long hits = TileRAMCache.getHits();
+		long misses = TileRAMCache.getMisses();
+
+		assertSame(tile, cache.peek(key));
+		assertNull(cache.peek(Tile.getKey(4, 4, (byte) 0)));
+		Tile acquired = cache.acquire(key, false);
+		assertSame(tile, acquired);
+		acquired.release();
+		assertNull(cache.acquire(Tile.getKey(4, 4, (byte) 0), false));
+		assertEquals(hits, TileRAMCache.getHits());
+		assertEquals(misses, TileRAMCache.getMisses());
+		assertFalse(tile.referenced);
+
+		assertSame(tile, cache.get(key));
+		assertNull(cache.get(Tile.getKey(4, 4, (byte) 0)));
+		assertEquals(hits + 1, TileRAMCache.getHits());
+		assertEquals(misses + 1, TileRAMCache.getMisses());
+		assertTrue(tile.referenced);
+	}
+
+	@Test
+	public void testLowPriorityEvictedFirst()
+	{
+		TileRAMCache.setMaxBytes(8 * TILE_BYTES);
+		Tile[] normal = new Tile[8];
+		for (int i = 0; i < 5; i++)
+			normal[i] = put(i, 0, false, false);
+		Tile generated = put(0, 1, true, false);
+		Tile expired = put(1, 1, false, true);
+		normal[5] = put(5, 0, false, false);
+		assertEquals(8 * TILE_BYTES, TileRAMCache.getTotalBytes());
+
+		// placeholders are evicted in insertion order before any real tile
+		normal[6] = put(6, 0, false, false);
+		assertFalse(isCached(generated));
+		assertTrue(isCached(expired));
+		normal[7] = put(7, 0, false, false);
+		assertFalse(isCached(expired));
+		for (Tile tile : normal)
+			assertTrue(isCached(tile));
+		assertEquals(8 * TILE_BYTES, TileRAMCache.getTotalBytes());
+	}
+
+	@Test
+	public void testLowPriorityLimitedToQuarter()
+	{
+		TileRAMCache.setMaxBytes(8 * TILE_BYTES);
+		Tile[] placeholders = new Tile[4];
+		for (int i = 0; i < placeholders.length; i++)
+			placeholders[i] = put(i, 0, i % 2 == 0, i % 2 != 0);
+		// only two placeholders fit in a quarter of budget, the oldest are evicted
+		assertFalse(isCached(placeholders[0]));
+		assertFalse(isCached(placeholders[1]));
+		assertTrue(isCached(placeholders[2]));
+		assertTrue(isCached(placeholders[3]));
+		assertEquals(2 * TILE_BYTES, TileRAMCache.getTotalBytes());
+	}
+
+	@Test
+	public void testPlaceholderDoesNotEvictRealTiles()
+	{
+		TileRAMCache.setMaxBytes(4 * TILE_BYTES);
+		Tile[] normal = new Tile[4];
+		for (int i = 0; i < normal.length; i++)
+			normal[i] = put(i, 0, false, false);
+		put(0, 1, true, false);
+		for (Tile tile : normal)
+			assertTrue(isCached(tile));
+		// downloaded tile replaces its placeholder
+		Tile downloaded = put(0, 1, false, false);
+		assertTrue(isCached(downloaded));
+		assertEquals(4, TileRAMCache.getTotalSize());
+	}
+
+	/**
+	 * Puts tiles that have not been drawn for a while and tiles that are drawn now.
+	 *
+	 * @return tiles that are drawn now
+	 */
+	private Tile[] putInvisibleAndVisible(int count)
+	{
+		for (int i = 0; i < count; i++)
+		{
+			Tile tile = put(i, 0, false, false);
+			// drawn long before visible tiles
+			tile.accessTime -= 10000;
+		}
+		Tile[] visible = new Tile[count];
+		for (int i = 0; i < count; i++)
+		{
+			visible[i] = put(i, 1, false, false);
+			cache.get(visible[i].getKey());
+		}
+		return visible;
+	}
+
+	@Test
+	public void testTrimRunningModerate()
+	{
+		Tile[] normal = new Tile[4];
+		for (int i = 0; i < normal.length; i++)
+			normal[i] = put(i, 0, false, false);
+		Tile generated = put(0, 1, true, false);
+		Tile expired = put(1, 1, false, true);
+
+		TileRAMCache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+		assertFalse(isCached(generated));
+		assertFalse(isCached(expired));
+		for (Tile tile : normal)
+			assertTrue(isCached(tile));
+	}
+
+	@Test
+	public void testTrimRunningLow()
+	{
+		for (int i = 0; i < 8; i++)
+			put(i, 0, false, false);
+		Tile generated = put(0, 1, true, false);
+
+		TileRAMCache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+		assertFalse(isCached(generated));
+		// half of real tiles are kept
+		assertEquals(4, TileRAMCache.getTotalSize());
+		assertEquals(4 * TILE_BYTES, TileRAMCache.getTotalBytes());
+	}
+
+	@Test
+	public void testTrimRunningCritical()
+	{
+		Tile[] visible = putInvisibleAndVisible(4);
+
+		TileRAMCache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
+		for (Tile tile : visible)
+			assertTrue(isCached(tile));
+		assertEquals(visible.length, TileRAMCache.getTotalSize());
+	}
+
+	@Test
+	public void testTrimModerate()
+	{
+		putInvisibleAndVisible(4);
+
+		TileRAMCache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_MODERATE);
+		// invisible tiles are dropped and half of visible ones
+		assertEquals(2, TileRAMCache.getTotalSize());
+		for (int i = 0; i < 4; i++)
+			assertNull(cache.peek(Tile.getKey(i, 0, (byte) 0)));
+	}
+
+	@Test
+	public void testTrimComplete()
+	{
+		putInvisibleAndVisible(4);
+		put(0, 2, true, false);
+
+		TileRAMCache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+		assertEquals(0, TileRAMCache.getTotalSize());
+		assertEquals(0, TileRAMCache.getTotalBytes());
+	}
+
+	/**
+	 * Runs concurrent lookups, insertions and evictions. Lookups should return only tiles of
+	 * requested keys with bitmaps that are not released while they are held, cache size and
+	 * memory accounting should match its content and every tile should be released by the end.
+	 */
+	@Test
+	public void testContention() throws Exception
+	{
+		final int keys = 256;
+		final int operations = 20000;
+		// half of the keys fit in memory budget so that tiles are evicted all the time
+		TileRAMCache.setMaxBytes(keys / 2 * TILE_BYTES);
+
+		int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicReference<Throwable> error = new AtomicReference<>();
+		final Queue<Tile> created = new ConcurrentLinkedQueue<>();
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++)
+		{
+			final int seed = t;
+			workers[t] = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						start.await();
+						Random random = new Random(seed);
+						for (int i = 0; i < operations; i++)
+						{
+							int x = random.nextInt(keys);
+							long key = Tile.getKey(x, 0, (byte) 0);
+							Tile tile = cache.acquire(key);
+							if (tile == null)
+							{
+								// the same way tiles are loaded by maps
+								tile = newTile(x, 0, TILE_BYTES);
+								created.add(tile);
+								tile.acquire();
+								cache.put(key, tile);
+							}
+							if (tile.getKey() != key)
+								throw new AssertionError("lookup of " + key + " returned " + tile);
+							if (tile.bitmap == null)
+								throw new AssertionError("bitmap of held tile " + tile + " has been released");
+							tile.release();
+						}
+					}
+					catch (Throwable e)
+					{
+						error.set(e);
+					}
+				}
+			};
+			workers[t].start();
+		}
+		start.countDown();
+		for (Thread worker : workers)
+			worker.join();
+		if (error.get() != null)
+			throw new AssertionError(error.get());
+
+		int cached = 0;
+		for (int x = 0; x < keys; x++)
+		{
+			Tile tile = cache.peek(Tile.getKey(x, 0, (byte) 0));
+			if (tile != null)
+			{
+				assertNotNull(tile.bitmap);
+				cached++;
+			}
+		}
+		assertEquals(cached, TileRAMCache.getTotalSize());
+		assertEquals((long) cached * TILE_BYTES, TileRAMCache.getTotalBytes());
+		assertTrue(TileRAMCache.getTotalBytes() <= TileRAMCache.getMaxBytes());
+
+		// cache holds the only reference to each tile, no tile is left referenced
+		cache.clear();
+		assertEquals(0, TileRAMCache.getTotalBytes());
+		for (Tile tile : created)
+			assertNull(tile.bitmap);
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.objenesis.ObjenesisStd;
+
+import android.graphics.Bitmap;
+
+public class TwoQueueEvictionPolicyTest
+{
+	private static final ObjenesisStd objenesis = new ObjenesisStd();
+	private static final int TILE_BYTES = 1000;
+	private static final int CAPACITY = 16;
+	private static final int HOT = 8;
+	private static final int SWEEP = 100;
+
+	private TileRAMCache cache;
+	private long maxBytes;
+	private EvictionPolicy policy;
+
+	@Before
+	public void setUp()
+	{
+		maxBytes = TileRAMCache.getMaxBytes();
+		policy = TileRAMCache.getEvictionPolicy();
+		TileRAMCache.clearAll();
+		TileRAMCache.setMaxBytes(CAPACITY * TILE_BYTES);
+		TileRAMCache.setEvictionPolicy(new TwoQueueEvictionPolicy());
+		cache = new TileRAMCache(-2, 0);
+	}
+
+	@After
+	public void tearDown()
+	{
+		cache.clear();
+		cache.destroy();
+		TileRAMCache.setMaxBytes(maxBytes);
+		TileRAMCache.setEvictionPolicy(policy);
+	}
+
+	/**
+	 * Looks tile up the way renderers do, missing tile is created and cached.
+	 */
+	private Tile request(int x)
+	{
+		long key = Tile.getKey(x, 0, (byte) 0);
+		Tile tile = cache.get(key);
+		if (tile == null)
+		{
+			tile = new Tile(x, 0, (byte) 0)
+			{
+				@Override
+				int getByteCount()
+				{
+					return TILE_BYTES;
+				}
+			};
+			// bitmaps are not functional in unit tests, instance is created without constructor
+			tile.bitmap = objenesis.newInstance(Bitmap.class);
+			cache.put(key, tile);
+		}
+		return tile;
+	}
+
+	@Test
+	public void testScanResistance()
+	{
+		// hot tiles are seen, pushed out of probation queue by other tiles and seen again
+		for (int x = 0; x < HOT; x++)
+			request(x);
+		for (int x = HOT; x < HOT + CAPACITY; x++)
+			request(x);
+		Tile[] hot = new Tile[HOT];
+		for (int x = 0; x < HOT; x++)
+			hot[x] = request(x);
+		TileRAMCache.resetStatistics();
+
+		// one pass over new tiles, e.g. during fling
+		for (int x = 1000; x < 1000 + SWEEP; x++)
+			request(x);
+		assertEquals(0, TileRAMCache.getHits());
+		assertEquals(SWEEP, TileRAMCache.getMisses());
+
+		for (int x = 0; x < HOT; x++)
+		{
+			Tile tile = cache.peek(Tile.getKey(x, 0, (byte) 0));
+			assertNotNull("hot tile " + x + " has been evicted", tile);
+			assertSame(hot[x], tile);
+			request(x);
+		}
+		assertEquals(HOT, TileRAMCache.getHits());
+		assertEquals(SWEEP, TileRAMCache.getMisses());
+		assertEquals(CAPACITY, TileRAMCache.getTotalSize());
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map.online;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.objenesis.ObjenesisStd;
+
+import android.graphics.Bitmap;
+
+import com.androzic.map.Tile;
+import com.androzic.map.TileRAMCache;
+
+public class TileControllerTest
+{
+	private static final byte ZOOM = 10;
+
+	private TestProvider provider;
+	private TileController controller;
+	private TileRAMCache cache;
+
+	@Before
+	public void setUp() throws InterruptedException
+	{
+		provider = new TestProvider();
+		controller = new TileController(provider);
+		cache = new TileRAMCache(-1, 0);
+		controller.setCache(cache);
+		controller.setViewport(ZOOM, 100.5, 100.5, 1, 1);
+		// the only download thread is kept busy so that requests stay queued
+		controller.queueForDownload(Tile.getKey(100, 100, ZOOM), new Tile(100, 100, ZOOM));
+		assertEquals("10/100/100", provider.requests.poll(5, TimeUnit.SECONDS));
+	}
+
+	@After
+	public void tearDown()
+	{
+		provider.gate.countDown();
+		controller.interrupt();
+		cache.clear();
+		cache.destroy();
+	}
+
+	@Test
+	public void testCancelledPlaceholderIsQueuedAgain() throws InterruptedException
+	{
+		Tile placeholder = new Tile(101, 100, ZOOM);
+		placeholder.generated = true;
+		placeholder.bitmap = new ObjenesisStd().newInstance(Bitmap.class);
+		long key = placeholder.getKey();
+		cache.put(key, placeholder);
+		controller.queueForDownload(key, placeholder);
+		assertEquals(1, controller.pendingQueue.size());
+
+		// placeholder is scrolled out of view
+		controller.setViewport(ZOOM, 200.5, 200.5, 1, 1);
+		assertTrue(controller.pendingQueue.isEmpty());
+		assertFalse(controller.tileMap.containsKey(key));
+
+		// placeholder is scrolled back into view and drawn from cache
+		controller.setViewport(ZOOM, 100.5, 100.5, 1, 1);
+		Tile tile = controller.acquireTile(101, 100, ZOOM);
+		assertSame(placeholder, tile);
+		tile.release();
+		assertEquals(1, controller.pendingQueue.size());
+
+		provider.gate.countDown();
+		assertEquals("10/101/100", provider.requests.poll(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testTileOutsideViewportIsNotQueued()
+	{
+		long key = Tile.getKey(300, 300, ZOOM);
+		controller.queueForDownload(key, new Tile(300, 300, ZOOM));
+		assertTrue(controller.pendingQueue.isEmpty());
+		assertFalse(controller.tileMap.containsKey(key));
+
+		// request of adjacent zoom level
+		key = Tile.getKey(201, 201, (byte) (ZOOM + 1));
+		controller.queueForDownload(key, new Tile(201, 201, (byte) (ZOOM + 1)));
+		assertEquals(1, controller.pendingQueue.size());
+	}
+
+	@Test
+	public void testOldestCancelledPlaceholdersAreForgotten()
+	{
+		Bitmap bitmap = new ObjenesisStd().newInstance(Bitmap.class);
+		Tile[] placeholders = new Tile[TileController.MAX_CANCELLED + 1];
+		for (int i = 0; i < placeholders.length; i++)
+		{
+			placeholders[i] = new Tile(1000 + i, 1000, ZOOM);
+			placeholders[i].bitmap = bitmap;
+			controller.queueForDownload(placeholders[i].getKey(), placeholders[i]);
+		}
+		assertEquals(TileController.MAX_CANCELLED, controller.cancelledMap.size());
+		assertFalse(controller.cancelledMap.containsKey(placeholders[0].getKey()));
+		for (int i = 1; i < placeholders.length; i++)
+			assertSame(placeholders[i], controller.cancelledMap.get(placeholders[i].getKey()));
+	}
+
+	private static class TestProvider extends TileProvider
+	{
+		final BlockingQueue<String> requests = new LinkedBlockingQueue<>();
+		final CountDownLatch gate = new CountDownLatch(1);
+
+		TestProvider()
+		{
+			threads = 1;
+		}
+
+		@Override
+		public void activate()
+		{
+		}
+
+		@Override
+		public void deactivate()
+		{
+		}
+
+		@Override
+		public String getTileUri(int x, int y, byte z)
+		{
+			requests.add(z + "/" + x + "/" + y);
+			try
+			{
+				gate.await();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			// tile is not downloaded
+			return null;
+		}
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map.online;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class TileHttpClientTest
+{
+	private static final int TILE_SIZE = 5000;
+
+	private HttpServer server;
+	private ExecutorService executor;
+	private String base;
+
+	private final Set<String> connections = Collections.synchronizedSet(new HashSet<String>());
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicInteger maxActive = new AtomicInteger();
+
+	@Before
+	public void setUp() throws IOException
+	{
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 50);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException
+			{
+				// remote address includes client port, so it identifies connection
+				connections.add(exchange.getRemoteAddress().toString());
+				int n = active.incrementAndGet();
+				synchronized (maxActive)
+				{
+					if (n > maxActive.get())
+						maxActive.set(n);
+				}
+				try
+				{
+					Thread.sleep(10);
+				}
+				catch (InterruptedException ignore)
+				{
+				}
+				boolean missing = exchange.getRequestURI().getPath().startsWith("/missing/");
+				byte[] body = missing ? "Not found".getBytes() : new byte[TILE_SIZE];
+				exchange.sendResponseHeaders(missing ? 404 : 200, body.length);
+				exchange.getResponseBody().write(body);
+				active.decrementAndGet();
+				exchange.close();
+			}
+		});
+		executor = Executors.newFixedThreadPool(8);
+		server.setExecutor(executor);
+		server.start();
+		base = "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	@After
+	public void tearDown()
+	{
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testConnectionsAreReused() throws Exception
+	{
+		run(null, TileHttpClient.maxRequestsPerHost);
+		assertTrue("too many requests in flight: " + maxActive.get(), maxActive.get() <= TileHttpClient.maxRequestsPerHost);
+		assertTrue("connections are not reused: " + connections.size(), connections.size() <= TileHttpClient.maxRequestsPerHost);
+	}
+
+	@Test
+	public void testLimitChangeTakesEffect() throws Exception
+	{
+		run("test", 3);
+		maxActive.set(0);
+		run("test", 1);
+		assertEquals(1, maxActive.get());
+	}
+
+	/**
+	 * Downloads tiles in several threads, every fifth request fails.
+	 */
+	private void run(final String group, final int maxRequests) throws Exception
+	{
+		final int threads = 4;
+		final int requests = 20;
+		final AtomicReference<Throwable> error = new AtomicReference<>();
+
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++)
+		{
+			final int k = i;
+			workers[i] = new Thread() {
+				@Override
+				public void run()
+				{
+					try
+					{
+						for (int j = 0; j < requests; j++)
+						{
+							// error responses must not break connection reuse
+							if (j % 5 == 0)
+							{
+								TileHttpClient.Response response = TileHttpClient.get(base + "/missing/" + k + "/" + j, null, group, maxRequests);
+								assertEquals(404, response.code);
+								assertNull(response.data);
+							}
+							else
+							{
+								TileHttpClient.Response response = TileHttpClient.get(base + "/tile/" + k + "/" + j, null, group, maxRequests);
+								assertEquals(TILE_SIZE, response.data.length);
+							}
+						}
+					}
+					catch (Throwable e)
+					{
+						error.set(e);
+					}
+				}
+			};
+			workers[i].start();
+		}
+		for (Thread worker : workers)
+			worker.join();
+
+		if (error.get() != null)
+			throw new AssertionError(error.get());
+	}
+}
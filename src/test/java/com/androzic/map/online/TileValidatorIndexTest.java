@@ -0,0 +1,152 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map.online;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TileValidatorIndexTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void keepsAllTilesOfDirectoryInOneFile() throws IOException
+	{
+		File dir = folder.newFolder("x1");
+		File tile1 = new File(dir, "y1.png");
+		File tile2 = new File(dir, "y2.png");
+
+		TileHttpClient.Validators validators = new TileHttpClient.Validators();
+		validators.etag = "\"abc\"";
+		validators.lastModified = 1000L;
+		TileValidatorIndex.put(tile1, validators, 5000L);
+		validators.etag = null;
+		validators.lastModified = 2000L;
+		TileValidatorIndex.put(tile2, validators, 6000L);
+
+		String[] files = dir.list();
+		assertEquals(1, files.length);
+		assertEquals(TileValidatorIndex.INDEX_NAME, files[0]);
+
+		TileValidatorIndex.Entry entry = TileValidatorIndex.get(tile1);
+		assertNotNull(entry);
+		assertEquals("\"abc\"", entry.validators.etag);
+		assertEquals(1000L, entry.validators.lastModified);
+		assertEquals(5000L, entry.checked);
+		entry = TileValidatorIndex.get(tile2);
+		assertNotNull(entry);
+		assertNull(entry.validators.etag);
+		assertEquals(2000L, entry.validators.lastModified);
+		assertEquals(6000L, entry.checked);
+	}
+
+	@Test
+	public void updatesCheckTimeOnRevalidation() throws IOException
+	{
+		File tile = new File(folder.newFolder("x2"), "y1.png");
+		TileHttpClient.Validators validators = new TileHttpClient.Validators();
+		validators.etag = "\"abc\"";
+		TileValidatorIndex.put(tile, validators, 5000L);
+		TileValidatorIndex.put(tile, validators, 9000L);
+		assertEquals(9000L, TileValidatorIndex.get(tile).checked);
+	}
+
+	@Test
+	public void deletesEmptyIndex() throws IOException
+	{
+		File dir = folder.newFolder("x3");
+		File tile1 = new File(dir, "y1.png");
+		File tile2 = new File(dir, "y2.png");
+		TileHttpClient.Validators validators = new TileHttpClient.Validators();
+		validators.etag = "\"abc\"";
+		TileValidatorIndex.put(tile1, validators, 5000L);
+		TileValidatorIndex.put(tile2, validators, 5000L);
+
+		TileValidatorIndex.remove(tile1);
+		assertNull(TileValidatorIndex.get(tile1));
+		assertNotNull(TileValidatorIndex.get(tile2));
+		TileValidatorIndex.remove(tile2);
+		assertFalse(new File(dir, TileValidatorIndex.INDEX_NAME).exists());
+		assertTrue(dir.list().length == 0);
+	}
+
+	@Test
+	public void readsAppendedChangesBack() throws IOException
+	{
+		File dir = folder.newFolder("x4");
+		File tile1 = new File(dir, "y1.png");
+		File tile2 = new File(dir, "y2.png");
+		TileHttpClient.Validators validators = new TileHttpClient.Validators();
+		validators.etag = "\"abc\"";
+		TileValidatorIndex.put(tile1, validators, 5000L);
+		TileValidatorIndex.put(tile2, validators, 5000L);
+		TileValidatorIndex.put(tile1, validators, 7000L);
+		TileValidatorIndex.remove(tile2);
+
+		TileValidatorIndex.reset();
+		assertEquals(7000L, TileValidatorIndex.get(tile1).checked);
+		assertNull(TileValidatorIndex.get(tile2));
+	}
+
+	@Test
+	public void rewritesIndexWithManySupersededLines() throws IOException
+	{
+		File dir = folder.newFolder("x5");
+		File tile = new File(dir, "y1.png");
+		TileHttpClient.Validators validators = new TileHttpClient.Validators();
+		validators.etag = "\"abc\"";
+		for (int i = 0; i < TileValidatorIndex.MIN_STALE_LINES * 3; i++)
+			TileValidatorIndex.put(tile, validators, i);
+
+		assertTrue(countLines(new File(dir, TileValidatorIndex.INDEX_NAME)) <= TileValidatorIndex.MIN_STALE_LINES + 1);
+		TileValidatorIndex.reset();
+		assertEquals(TileValidatorIndex.MIN_STALE_LINES * 3 - 1, TileValidatorIndex.get(tile).checked);
+	}
+
+	private static int countLines(File file) throws IOException
+	{
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try
+		{
+			int lines = 0;
+			while (reader.readLine() != null)
+				lines++;
+			return lines;
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map.ozf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class OzfDecoderTest
+{
+	/**
+	 * Offset of scale data, beyond signed 32-bit range
+	 */
+	private static final long DATA_OFFSET = 0xA0000000L;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@After
+	public void tearDown()
+	{
+		OzfDecoder.useMemoryMapping = false;
+	}
+
+	@Test
+	public void testLargeFile() throws IOException
+	{
+		File file = createLargeFile();
+		OzfFile ozf = OzfDecoder.open(file);
+		try
+		{
+			assertEquals(1, ozf.scales);
+			assertEquals(DATA_OFFSET, ozf.scales_table[0]);
+			assertEquals(64, OzfDecoder.scale_dx(ozf, 0));
+			assertTileIsRed(OzfDecoder.getTile(ozf, 0, 0, 0, 64, 64));
+		}
+		finally
+		{
+			OzfDecoder.close(ozf);
+		}
+	}
+
+	@Test
+	public void testLargeFileMapped() throws IOException
+	{
+		OzfDecoder.useMemoryMapping = true;
+		File file = createLargeFile();
+		OzfFile ozf = OzfDecoder.open(file, true);
+		try
+		{
+			assertTileIsRed(OzfDecoder.getTile(ozf, 0, 0, 0, 64, 64));
+		}
+		finally
+		{
+			OzfDecoder.close(ozf);
+		}
+	}
+
+	private static void assertTileIsRed(int[] pixels)
+	{
+		assertNotNull(pixels);
+		for (int pixel : pixels)
+			assertEquals(0xFFFF0000, pixel);
+	}
+
+	/**
+	 * Creates sparse raw OZF file with one 64x64 scale located above 2 GB.
+	 */
+	private File createLargeFile() throws IOException
+	{
+		byte[] pixels = new byte[OzfDecoder.OZF_TILE_WIDTH * OzfDecoder.OZF_TILE_HEIGHT];
+		Arrays.fill(pixels, (byte) 1);
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+		deflater.setInput(pixels);
+		deflater.finish();
+		byte[] buffer = new byte[pixels.length];
+		int length = deflater.deflate(buffer);
+		deflater.end();
+
+		long tile0 = DATA_OFFSET + 4 + 4 + 2 + 2 + 256 * 4 + 2 * 4;
+		long tile1 = tile0 + length;
+
+		ByteBuffer data = ByteBuffer.allocate((int) (tile1 - DATA_OFFSET) + 4 + 4).order(ByteOrder.LITTLE_ENDIAN);
+		data.putInt(64).putInt(64).putShort((short) 1).putShort((short) 1);
+		byte[] palette = new byte[256 * 4];
+		palette[1 * 4 + 2] = (byte) 0xFF; // blue, green, red, reserved
+		data.put(palette);
+		data.putInt((int) tile0).putInt((int) tile1);
+		data.put(buffer, 0, length);
+		data.putInt((int) DATA_OFFSET); // scales table
+		data.putInt((int) tile1); // scales table offset
+
+		ByteBuffer header = ByteBuffer.allocate(2 + 4 * 4 + 4 + 4 + 2 + 2 + 4 * 6).order(ByteOrder.LITTLE_ENDIAN);
+		header.putShort((short) 0x7778);
+		header.position(2 + 4 * 4);
+		header.putInt(64).putInt(64).putShort((short) 1).putShort((short) 8);
+
+		File file = folder.newFile("large.ozf2");
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try
+		{
+			out.write(header.array());
+			out.seek(DATA_OFFSET);
+			out.write(data.array());
+		}
+		finally
+		{
+			out.close();
+		}
+		return file;
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map.ozf;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class OzfTileCacheTest
+{
+	private static final int TILE_SIZE = OzfDecoder.OZF_TILE_WIDTH * OzfDecoder.OZF_TILE_HEIGHT;
+	private static final int TILES = 100;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testReopen() throws IOException
+	{
+		File image = folder.newFile("map.ozfx3");
+		byte[][] tiles = new byte[TILES][];
+		Random random = new Random(1);
+		for (int i = 0; i < TILES; i++)
+		{
+			tiles[i] = new byte[TILE_SIZE];
+			// mix of run-length encoded and raw records
+			if (i % 2 == 0)
+				random.nextBytes(tiles[i]);
+			else
+				tiles[i][i] = (byte) i;
+		}
+
+		OzfTileCache cache = OzfTileCache.open(image);
+		assertNotNull(cache);
+		for (int i = 0; i < TILES; i++)
+			cache.write(1, i, tiles[i]);
+		cache.close();
+
+		// append garbage resembling incomplete record
+		File cacheFile = new File(image.getParentFile(), image.getName() + OzfTileCache.EXTENSION);
+		RandomAccessFile raf = new RandomAccessFile(cacheFile, "rw");
+		raf.seek(raf.length());
+		raf.writeInt(1);
+		raf.writeInt(TILES);
+		raf.writeShort(TILE_SIZE);
+		raf.close();
+
+		cache = OzfTileCache.open(image);
+		assertNotNull(cache);
+		byte[] dest = new byte[TILE_SIZE];
+		for (int i = 0; i < TILES; i++)
+		{
+			assertTrue(cache.read(1, i, dest));
+			assertArrayEquals(tiles[i], dest);
+		}
+		assertFalse(cache.read(1, TILES, dest));
+		assertFalse(cache.read(0, 0, dest));
+		cache.close();
+	}
+
+	@Test
+	public void testInvalidate() throws IOException
+	{
+		File image = folder.newFile("map.ozfx3");
+		OzfTileCache cache = OzfTileCache.open(image);
+		cache.write(0, 0, new byte[TILE_SIZE]);
+		cache.close();
+
+		assertTrue(image.setLastModified(image.lastModified() - 10000));
+		cache = OzfTileCache.open(image);
+		assertFalse(cache.read(0, 0, new byte[TILE_SIZE]));
+		cache.close();
+	}
+
+	@Test
+	public void testCorrupted() throws IOException
+	{
+		File image = folder.newFile("map.ozfx3");
+		OzfTileCache cache = OzfTileCache.open(image);
+		cache.write(0, 0, new byte[TILE_SIZE]);
+		cache.close();
+
+		// record longer than tile
+		File cacheFile = new File(image.getParentFile(), image.getName() + OzfTileCache.EXTENSION);
+		RandomAccessFile raf = new RandomAccessFile(cacheFile, "rw");
+		raf.seek(raf.length());
+		raf.writeInt(0);
+		raf.writeInt(1);
+		raf.writeShort(0x7FFF);
+		raf.write(new byte[0x7FFF]);
+		raf.close();
+
+		cache = OzfTileCache.open(image);
+		assertNotNull(cache);
+		byte[] dest = new byte[TILE_SIZE];
+		assertFalse(cache.read(0, 0, dest));
+		assertFalse(cache.read(0, 1, dest));
+		dest[0] = 1;
+		cache.write(0, 1, dest);
+		byte[] tile = new byte[TILE_SIZE];
+		assertTrue(cache.read(0, 1, tile));
+		assertArrayEquals(dest, tile);
+		cache.close();
+	}
+
+	@Test
+	public void testMalformedRecord() throws IOException
+	{
+		File image = folder.newFile("map.ozfx3");
+		OzfTileCache cache = OzfTileCache.open(image);
+		cache.close();
+
+		// run-length encoded record with literal run longer than record
+		File cacheFile = new File(image.getParentFile(), image.getName() + OzfTileCache.EXTENSION);
+		RandomAccessFile raf = new RandomAccessFile(cacheFile, "rw");
+		raf.seek(raf.length());
+		raf.writeInt(0);
+		raf.writeInt(0);
+		raf.writeShort(0x8000 | 1);
+		raf.writeByte(0x7F);
+		raf.close();
+
+		cache = OzfTileCache.open(image);
+		assertFalse(cache.read(0, 0, new byte[TILE_SIZE]));
+		cache.close();
+	}
+}